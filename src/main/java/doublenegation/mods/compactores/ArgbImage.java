@@ -0,0 +1,44 @@
+package doublenegation.mods.compactores;
+
+/**
+ * A plain image, stored as packed 0xAARRGGBB pixels in row-major order.
+ */
+public class ArgbImage {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public ArgbImage(int width, int height, int[] pixels) {
+        if(pixels.length != width * height) {
+            throw new IllegalArgumentException("Pixel array size mismatch (expected " + (width * height) +
+                    " pixels for " + width + "x" + height + ", got " + pixels.length + ")");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /** Copies the rows y (inclusive) to y + rows (exclusive). */
+    public int[] copyRows(int y, int rows) {
+        if(y < 0 || rows < 0 || y + rows > height) {
+            throw new IllegalArgumentException("Rows " + y + " to " + (y + rows) + " are outside of the image (height=" + height + ")");
+        }
+        int[] result = new int[width * rows];
+        System.arraycopy(pixels, y * width, result, 0, result.length);
+        return result;
+    }
+
+}
@@ -4,93 +4,296 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import net.minecraft.client.Minecraft;
-import net.minecraft.resources.IReloadableResourceManager;
-import net.minecraft.resources.IResource;
-import net.minecraft.resources.IResourceManager;
 import net.minecraft.util.ResourceLocation;
-import net.minecraftforge.resource.ISelectiveResourceReloadListener;
-import net.minecraftforge.resource.VanillaResourceType;
 
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CompactOreTexture {
 
     private static boolean redrawOreBase = false;
-    private static Map<ResourceLocation, TextureInfo> generatedTextureCache = new HashMap<>();
-    private static Map<ResourceLocation, TextureInfo> baseTextureCache = new HashMap<>();
+    private static boolean useOverlayModels = false;
+    private static int maxTextureResolution = 512;
+    private static int maxAnimationFrames = 128;
+    // textures are generated on multiple threads at once - each texture is only generated once, see getOrCompute
+    private static Map<ResourceLocation, CompletableFuture<TextureInfo>> generatedTextureCache = new ConcurrentHashMap<>();
+    private static Map<ResourceLocation, CompletableFuture<TextureInfo>> baseTextureCache = new ConcurrentHashMap<>();
+    // most ores share a few base textures - everything that is derived only from a base texture (scaled, interpolated
+    // and repeated frames) is cached by the base texture location and the list of transformations, see deriveBase
+    private static Map<List<Object>, CompletableFuture<TextureInfo>> derivedBaseCache = new ConcurrentHashMap<>();
+    // by base frame (compared by identity, only frames of derived bases) or base texture location, and the maximum
+    // color difference
+    private static Map<List<Object>, CompletableFuture<RockColorIndex>> rockColorIndexCache = new ConcurrentHashMap<>();
 
-    public static TextureInfo generate(ResourceLocation baseBlock, ResourceLocation baseTexture,
-                                       ResourceLocation oreBlock, ResourceLocation oreTexture, int maxOreLayerDiff) {
-        if(generatedTextureCache.containsKey(oreBlock)) {
-            return generatedTextureCache.get(oreBlock);
+    public static TextureInfo generate(ResourceLocation baseBlock, RawTexture baseTexture,
+                                       ResourceLocation oreBlock, RawTexture oreTexture, int maxOreLayerDiff) {
+        try {
+            return getOrCompute(generatedTextureCache, oreBlock, () -> generateUncached(baseBlock, baseTexture,
+                    oreBlock, oreTexture, maxOreLayerDiff));
+        } catch(Exception e) {
+            throw new RuntimeException("Unable to generate compact ore texture (baseBlock=" + baseBlock +
+                    ", oreBlock=" + oreBlock + ", baseTexture=" + baseTexture.getLocation() +
+                    ", oreTexture=" + oreTexture.getLocation() + ")", e);
         }
+    }
+
+    /**
+     * Generates only the ore part of a compact ore texture, which is rendered on top of the unmodified base texture
+     * by the overlay models (see {@link #usesOverlayModel(CompactOre)}). The result has the resolution and the
+     * animation of the ore texture, the base texture is only used to tell ore and rock apart.
+     */
+    public static TextureInfo generateOverlay(ResourceLocation baseBlock, RawTexture baseTexture,
+                                              ResourceLocation oreBlock, RawTexture oreTexture, int maxOreLayerDiff) {
         try {
-            TextureInfo base;
-            if(baseTextureCache.containsKey(baseTexture)) {
-                base = baseTextureCache.get(baseTexture);
-            } else {
-                base = TextureInfo.generate(baseBlock, baseTexture);
-                baseTextureCache.put(baseTexture, base);
+            return getOrCompute(generatedTextureCache, oreBlock, () -> {
+                TextureInfo base = getOrCompute(baseTextureCache, baseTexture.getLocation(), () -> TextureInfo.generate(baseBlock, baseTexture));
+                return generateOverlayTexture(baseTexture.getLocation(), base, TextureInfo.generate(oreBlock, oreTexture), maxOreLayerDiff);
+            });
+        } catch(Exception e) {
+            throw new RuntimeException("Unable to generate compact ore overlay texture (baseBlock=" + baseBlock +
+                    ", oreBlock=" + oreBlock + ", baseTexture=" + baseTexture.getLocation() +
+                    ", oreTexture=" + oreTexture.getLocation() + ")", e);
+        }
+    }
+
+    /** @return whether the ore is rendered as overlay on top of its base texture instead of with a texture of its own */
+    public static boolean usesOverlayModel(CompactOre ore) {
+        // exact matching compares pixel by pixel, which requires the generated texture
+        return useOverlayModels && ore.isGenerateTexture() && ore.getMaxOreLayerColorDiff() >= 0 &&
+                ore.getBaseUnderlyingTexture() != null && ore.getBaseOreTexture() != null;
+    }
+
+    private static TextureInfo generateUncached(ResourceLocation baseBlock, RawTexture baseTexture,
+                                                ResourceLocation oreBlock, RawTexture oreTexture, int maxOreLayerDiff) throws Exception {
+        TextureInfo base = getOrCompute(baseTextureCache, baseTexture.getLocation(), () -> TextureInfo.generate(baseBlock, baseTexture));
+        TextureInfo ore = TextureInfo.generate(oreBlock, oreTexture);
+        // describes how the current base was derived from the base texture, null once it also depends on the ore
+        List<Object> baseKey = Collections.singletonList(baseTexture.getLocation());
+        int baseWidth = base.getWidth();
+        int baseHeight = base.getHeight();
+        int oreWidth = ore.getWidth();
+        int oreHeight = ore.getHeight();
+        int[] outputSize = getOutputSize(baseWidth, baseHeight, oreWidth, oreHeight);
+        int outputWidth = outputSize[0], outputHeight = outputSize[1];
+        TextureInfo unscaledBase = base;
+        if(outputWidth % baseWidth == 0 && outputWidth % oreWidth == 0) {
+            // Scale the textures
+            int baseFactor = outputWidth / baseWidth, oreFactor = outputWidth / oreWidth;
+            // (scaling and resampling treat transparent pixels differently, so the same size can have two results)
+            baseKey = derive(baseKey, "scaled", outputWidth, outputHeight);
+            base = deriveBase(baseKey, () -> scale(unscaledBase, baseFactor));
+            ore = scale(ore, oreFactor);
+        } else {
+            baseKey = derive(baseKey, "resampled", outputWidth, outputHeight);
+            base = deriveBase(baseKey, () -> resample(unscaledBase, outputWidth, outputHeight));
+            ore = resample(ore, outputWidth, outputHeight);
+        }
+        // Textures that need to be interpolated by the game usually don't play well with the texture generation,
+        // so interpolate them now - unless the generated texture can simply be interpolated between the keyframes
+        boolean interpolate = canKeepInterpolation(base, baseKey, ore, maxOreLayerDiff);
+        if(!interpolate) {
+            if(base.isInterpolate()) {
+                TextureInfo keyframes = base;
+                baseKey = derive(baseKey, "interpolated");
+                base = deriveBase(baseKey, () -> interpolateManually(keyframes));
             }
-            TextureInfo ore = TextureInfo.generate(oreBlock, oreTexture);
-            // Textures that need to be interpolated by the game don't play well with the texture generation,
-            // so interpolate them now
-            // (technically wouldn't be necessary if the keyframes are identical (i.e. the frametimes list of both
-            //  textures are identical), but I can't be bothered to implement that edge case right now)
-            if(base.isInterpolate()) base = interpolateManually(base);
             if(ore.isInterpolate()) ore = interpolateManually(ore);
-            // Calculate the factors for scaling the textures to the same resolution (lowest common multiple).
-            int baseWidth = base.getWidth();
-            int baseHeight = base.getHeight();
-            int oreWidth = ore.getWidth();
-            int oreHeight = ore.getHeight();
-            int commonWidth = lcm(baseWidth, oreWidth);
-            int commonHeight = lcm(baseHeight, oreHeight);
-            int baseCommonWidthFactor = commonWidth / baseWidth;
-            int baseCommonHeightFactor = commonHeight / baseHeight;
-            int baseFactor = lcm(baseCommonWidthFactor, baseCommonHeightFactor);
-            int oreFactor = baseFactor * baseWidth / oreWidth;
-            // Verify that the aspect ratios of the images actually match
-            // It wouldn't make a lot of sense to try combining them otherwise
-            if(baseFactor * baseHeight != oreFactor * oreHeight) {
-                throw new RuntimeException("Aspect ratio mismatch (oreFactor=" + oreFactor + ", baseFactor=" + baseFactor +
-                        ", baseDimensions=" + baseWidth + "x" + baseHeight + ", oreDimensions=" + oreWidth + "x" + oreHeight + ")");
+        }
+        // Animation times might not match up - repeat the animations so they match properly
+        int animBase = base.getTotalAnimationTime();
+        int animOre = ore.getTotalAnimationTime();
+        if(animBase != 0 && animOre != 0) {
+            // (interpolated keyframes always line up, and resampling them would break the interpolation)
+            if(!interpolate && maxAnimationFrames > 0 && estimateFrameCount(base, ore) > maxAnimationFrames) {
+                // The exact combined animation would have too many frames. Try to change the speed of one of the
+                // animations a little, so that their lengths are multiples of each other...
+                TextureInfo snappedOre = snapAnimation(ore, animBase);
+                TextureInfo snappedBase = snapAnimation(base, animOre);
+                double oreChange = snappedOre == null ? Double.MAX_VALUE : Math.abs(snappedOre.getTotalAnimationTime() - animOre) / (double) animOre;
+                double baseChange = snappedBase == null ? Double.MAX_VALUE : Math.abs(snappedBase.getTotalAnimationTime() - animBase) / (double) animBase;
+                if(snappedOre != null && oreChange <= baseChange && estimateFrameCount(base, snappedOre) <= maxAnimationFrames) {
+                    ore = snappedOre;
+                } else if(snappedBase != null && estimateFrameCount(snappedBase, ore) <= maxAnimationFrames) {
+                    base = snappedBase;
+                    baseKey = null;
+                } else {
+                    // ...or, if that isn't enough, show both of them on a coarser common frame grid.
+                    TextureInfo[] sampled = sampleOnFrameGrid(base, ore, maxAnimationFrames);
+                    base = sampled[0];
+                    ore = sampled[1];
+                    baseKey = null;
+                }
+                animBase = base.getTotalAnimationTime();
+                animOre = ore.getTotalAnimationTime();
             }
-            // Scale the textures
-            base = scale(base, baseFactor);
-            ore = scale(ore, oreFactor);
-            // Animation times might not match up - repeat the animations so they match properly
-            int animBase = base.getTotalAnimationTime();
-            int animOre = ore.getTotalAnimationTime();
-            if(animBase != 0 && animOre != 0) {
-                int animCommon = lcm(animBase, animOre);
-                base = repeatAnimation(base, animCommon / animBase);
-                ore = repeatAnimation(ore, animCommon / animOre);
+            int animCommon = lcm(animBase, animOre);
+            TextureInfo unrepeatedBase = base;
+            int baseRepeats = animCommon / animBase;
+            baseKey = derive(baseKey, "repeated", baseRepeats);
+            base = deriveBase(baseKey, () -> repeatAnimation(unrepeatedBase, baseRepeats));
+            ore = repeatAnimation(ore, animCommon / animOre);
+        }
+        // Finally generate the new texture
+        TextureInfo result = generateCompactTexture(base, baseKey, ore, maxOreLayerDiff);
+        if(interpolate) {
+            result = new TextureInfo(result.getTextureOwner(), result.getWidth(), result.getHeight(),
+                    result.getTextures(), result.getFrametimes(), true);
+        }
+        return result;
+    }
+
+    /** @return the size {width, height} of the frames of a compact ore texture made from frames of the given sizes */
+    private static int[] getOutputSize(int baseWidth, int baseHeight, int oreWidth, int oreHeight) {
+        // Calculate the factors for scaling the textures to the same resolution (lowest common multiple).
+        int commonWidth = lcm(baseWidth, oreWidth);
+        int commonHeight = lcm(baseHeight, oreHeight);
+        int baseCommonWidthFactor = commonWidth / baseWidth;
+        int baseCommonHeightFactor = commonHeight / baseHeight;
+        int baseFactor = lcm(baseCommonWidthFactor, baseCommonHeightFactor);
+        int oreFactor = baseFactor * baseWidth / oreWidth;
+        // Verify that the aspect ratios of the images actually match
+        // It wouldn't make a lot of sense to try combining them otherwise
+        if(baseFactor * baseHeight != oreFactor * oreHeight) {
+            throw new RuntimeException("Aspect ratio mismatch (oreFactor=" + oreFactor + ", baseFactor=" + baseFactor +
+                    ", baseDimensions=" + baseWidth + "x" + baseHeight + ", oreDimensions=" + oreWidth + "x" + oreHeight + ")");
+        }
+        int outputWidth = baseWidth * baseFactor, outputHeight = baseHeight * baseFactor;
+        if(maxTextureResolution > 0 && Math.max(outputWidth, outputHeight) > maxTextureResolution) {
+            // The common resolution would be too large - resample both textures to the size of the larger one
+            // (limited to the maximum resolution) instead.
+            int targetWidth = Math.max(baseWidth, oreWidth), targetHeight = Math.max(baseHeight, oreHeight);
+            if(Math.max(targetWidth, targetHeight) > maxTextureResolution) {
+                double shrink = (double) maxTextureResolution / Math.max(targetWidth, targetHeight);
+                targetWidth = Math.max(1, (int) Math.round(targetWidth * shrink));
+                targetHeight = Math.max(1, (int) Math.round(targetHeight * shrink));
             }
-            // Finally generate the new texture
-            TextureInfo result = generateCompactTexture(base, ore, maxOreLayerDiff);
-            generatedTextureCache.put(oreBlock, result);
-            return result;
-        } catch(Exception e) {
-            throw new RuntimeException("Unable to generate compact ore texture (baseBlock=" + baseBlock +
-                    ", oreBlock=" + oreBlock + ", baseTexture=" + baseTexture + ", oreTexture=" + oreTexture + ")", e);
+            return new int[] {targetWidth, targetHeight};
         }
+        return new int[] {outputWidth, outputHeight};
+    }
+
+    /**
+     * Makes a stand-in for a compact ore texture that is still being generated: the ore texture, resized to the size
+     * that the generated texture will have. Only works for textures that are not animated, because the size of an
+     * animated texture is only known once it has been generated.
+     * @return the placeholder, or null if the texture will be animated
+     */
+    public static ArgbImage makePlaceholder(RawTexture baseTexture, RawTexture oreTexture, boolean overlay) throws IOException {
+        if(oreTexture.getMeta() != null || (!overlay && baseTexture.getMeta() != null)) return null;
+        ArgbImage ore = Utils.loadImage(oreTexture.getTexture());
+        if(overlay) return ore;
+        ArgbImage base = Utils.loadImage(baseTexture.getTexture());
+        int[] size = getOutputSize(base.getWidth(), base.getHeight(), ore.getWidth(), ore.getHeight());
+        return resample(ore, size[0], size[1]);
+    }
+
+    /** Resamples the image to the new size, see {@link #resample(int[], int, int, int, int)} */
+    public static ArgbImage resample(ArgbImage image, int newW, int newH) {
+        if(image.getWidth() == newW && image.getHeight() == newH) return image;
+        return new ArgbImage(newW, newH, resample(image.getPixels(), image.getWidth(), image.getHeight(), newW, newH));
+    }
+
+    private static List<Object> derive(List<Object> key, Object... transformation) {
+        if(key == null) return null;
+        List<Object> derived = new ArrayList<>(key);
+        derived.addAll(Arrays.asList(transformation));
+        return derived;
+    }
+
+    private static TextureInfo deriveBase(List<Object> key, Callable<TextureInfo> derivation) throws Exception {
+        return key == null ? derivation.call() : getOrCompute(derivedBaseCache, key, derivation);
+    }
+
+    /**
+     * Returns the cached value for the key, computing it if it isn't cached yet. If multiple threads request the same
+     * key at the same time, the value is computed only once and all other threads wait for the result.
+     * Failed computations are not cached.
+     */
+    private static <K, V> V getOrCompute(Map<K, CompletableFuture<V>> cache, K key, Callable<V> computation) throws Exception {
+        CompletableFuture<V> future = cache.get(key);
+        if(future == null) {
+            CompletableFuture<V> newFuture = new CompletableFuture<>();
+            future = cache.putIfAbsent(key, newFuture);
+            if(future == null) {
+                future = newFuture;
+                try {
+                    newFuture.complete(computation.call());
+                } catch(Throwable t) {
+                    cache.remove(key, newFuture);
+                    newFuture.completeExceptionally(t);
+                }
+            }
+        }
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            if(e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * The generated texture can only be interpolated by the game if interpolating it gives the same result as
+     * generating it from the interpolated textures. That is the case if the keyframes of the interpolated textures
+     * line up, and if the interpolation doesn't change which pixels are part of the ore layer.
+     */
+    private static boolean canKeepInterpolation(TextureInfo base, List<Object> baseKey, TextureInfo ore, int maxOreLayerDiff) {
+        if(base.isInterpolate() && ore.isInterpolate()) {
+            if(!base.getFrametimes().equals(ore.getFrametimes())) return false;
+        } else if(base.isInterpolate()) {
+            if(ore.getTotalAnimationTime() != 0) return false;
+        } else if(ore.isInterpolate()) {
+            if(base.getTotalAnimationTime() != 0) return false;
+        } else {
+            return false;
+        }
+        int keyframes = Math.max(base.getTextures().size(), ore.getTextures().size());
+        for(int i = 0; i < keyframes; i++) {
+            int next = (i + 1) % keyframes;
+            int[] baseFrom = keyframe(base, i), baseTo = keyframe(base, next);
+            int[] oreFrom = keyframe(ore, i), oreTo = keyframe(ore, next);
+            // checking the middle of the transition as well catches most colors that only match on the way
+            boolean[] mask = oreMask(baseFrom, baseKey, oreFrom, maxOreLayerDiff);
+            if(!Arrays.equals(mask, oreMask(baseTo, baseKey, oreTo, maxOreLayerDiff)) ||
+                    !Arrays.equals(mask, oreMask(makeInterpolatedImage(.5, baseFrom, baseTo), null,
+                            makeInterpolatedImage(.5, oreFrom, oreTo), maxOreLayerDiff))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] keyframe(TextureInfo texture, int index) {
+        return texture.getTextures().get(index % texture.getTextures().size());
+    }
+
+    // which pixels of the ore texture are part of the ore layer
+    private static boolean[] oreMask(int[] base, List<Object> baseKey, int[] ore, int maxOreLayerDiff) {
+        int[] oreLayer = findOreLayer(base, baseKey, ore, maxOreLayerDiff);
+        boolean[] mask = new boolean[oreLayer.length];
+        for(int i = 0; i < oreLayer.length; i++) {
+            mask[i] = oreLayer[i] != 0;
+        }
+        return mask;
     }
 
     private static TextureInfo interpolateManually(TextureInfo texture) {
-        List<BufferedImage> newImages = new ArrayList<>();
+        List<int[]> newImages = new ArrayList<>();
+        List<Integer> newFrametimes = new ArrayList<>();
         int currentMasterIndex = 0;
         int currentMasterTime = texture.getFrametimes().get(0);
         int currentMasterPreviousTime = 0;
@@ -100,37 +303,32 @@ public class CompactOreTexture {
                 currentMasterPreviousTime += currentMasterTime;
                 currentMasterTime = texture.getFrametimes().get(++currentMasterIndex);
             }
-            BufferedImage beforeTexture = texture.getTextures().get(currentMasterIndex);
-            BufferedImage afterTexture = texture.getTextures()
+            int[] beforeTexture = texture.getTextures().get(currentMasterIndex);
+            int[] afterTexture = texture.getTextures()
                     .get(currentMasterIndex + 1 < texture.getTextures().size() ? currentMasterIndex + 1 : 0);
             double factor = (double)(currentFrame - currentMasterPreviousTime) / currentMasterTime;
-            newImages.add(makeInterpolatedImage(factor, beforeTexture, afterTexture));
-        }
-        Integer[] newFrametimesArray = new Integer[newImages.size()];
-        Arrays.fill(newFrametimesArray, 1);
-        List<Integer> newFrametimes = Arrays.asList(newFrametimesArray);
-        return new TextureInfo(texture.getTextureOwner(), newImages, newFrametimes, false);
-    }
-
-    private static BufferedImage makeInterpolatedImage(double factor, BufferedImage from, BufferedImage to) {
-        int w = from.getWidth(), h = from.getHeight();
-        WritableRaster fromRaster = from.getRaster(), toRaster = to.getRaster();
-        int[] dataBufferFrom = new int[fromRaster.getNumBands()];
-        int[] dataBufferTo = new int[toRaster.getNumBands()];
-        BufferedImage result = new BufferedImage(w, h, from.getType());
-        WritableRaster resultRaster = result.getRaster();
-        int[] dataBufferResult = new int[resultRaster.getNumBands()];
-        if(dataBufferResult.length != dataBufferFrom.length || dataBufferFrom.length != dataBufferTo.length)
-            throw new RuntimeException("When interpolating: Buffer array size mismatch");
-        for(int x = 0; x < w; x++) {
-            for(int y = 0; y < h; y++) {
-                fromRaster.getPixel(x, y, dataBufferFrom);
-                toRaster.getPixel(x, y, dataBufferTo);
-                for(int i = 0; i < dataBufferResult.length; i++) {
-                    dataBufferResult[i] = interpolateColor(factor, dataBufferTo[i], dataBufferFrom[i]);
-                }
-                resultRaster.setPixel(x, y, dataBufferResult);
+            int[] image = makeInterpolatedImage(factor, beforeTexture, afterTexture);
+            // slow transitions often don't change the image on every tick - just show the previous image longer
+            int last = newImages.size() - 1;
+            if(last >= 0 && Arrays.equals(newImages.get(last), image)) {
+                newFrametimes.set(last, newFrametimes.get(last) + 1);
+            } else {
+                newImages.add(image);
+                newFrametimes.add(1);
+            }
+        }
+        return new TextureInfo(texture.getTextureOwner(), texture.getWidth(), texture.getHeight(), newImages, newFrametimes, false);
+    }
+
+    private static int[] makeInterpolatedImage(double factor, int[] from, int[] to) {
+        int[] result = new int[from.length];
+        for(int i = 0; i < result.length; i++) {
+            int pixelFrom = from[i], pixelTo = to[i];
+            int pixelResult = 0;
+            for(int shift = 0; shift < 32; shift += 8) {
+                pixelResult |= interpolateColor(factor, (pixelTo >>> shift) & 0xFF, (pixelFrom >>> shift) & 0xFF) << shift;
             }
+            result[i] = pixelResult;
         }
         return result;
     }
@@ -142,49 +340,175 @@ public class CompactOreTexture {
 
     private static TextureInfo scale(TextureInfo texture, int factor) {
         if(factor == 1) return texture;
-        List<BufferedImage> scaledImages = new ArrayList<>(texture.getTextures().size());
-        for(BufferedImage image : texture.getTextures()) {
-            int w = image.getWidth(), h = image.getHeight();
-            BufferedImage newImage = new BufferedImage(w * factor, h * factor, image.getType());
-            WritableRaster oldRaster = image.getRaster();
-            WritableRaster newRaster = newImage.getRaster();
-            int[] pixelData = new int[oldRaster.getNumBands()];
+        int w = texture.getWidth(), h = texture.getHeight();
+        List<int[]> scaledImages = new ArrayList<>(texture.getTextures().size());
+        for(int[] image : texture.getTextures()) {
+            scaledImages.add(scale(image, w, h, factor));
+        }
+        return new TextureInfo(texture.getTextureOwner(), w * factor, h * factor, scaledImages, texture.getFrametimes(), texture.isInterpolate());
+    }
+
+    private static int[] scale(int[] image, int w, int h, int factor) {
+        int newW = w * factor;
+        int[] newImage = new int[newW * h * factor];
+        for(int y = 0; y < h; y++) {
+            // build the first scaled row, then copy it for the remaining rows of the same source row
+            int rowStart = y * factor * newW;
             for(int x = 0; x < w; x++) {
-                for(int y = 0; y < h; y++) {
-                    oldRaster.getPixel(x, y, pixelData);
-                    for(int fx = 0; fx < factor; fx++) {
-                        for(int fy = 0; fy < factor; fy++) {
-                            newRaster.setPixel(x * factor + fx, y * factor + fy, pixelData);
-                        }
+                Arrays.fill(newImage, rowStart + x * factor, rowStart + (x + 1) * factor, image[y * w + x]);
+            }
+            for(int fy = 1; fy < factor; fy++) {
+                System.arraycopy(newImage, rowStart, newImage, rowStart + fy * newW, newW);
+            }
+        }
+        return newImage;
+    }
+
+    private static TextureInfo resample(TextureInfo texture, int newW, int newH) {
+        int w = texture.getWidth(), h = texture.getHeight();
+        if(w == newW && h == newH) return texture;
+        // frames that are shown multiple times are the same array, so they only need to be resampled once
+        Map<int[], int[]> resampled = new IdentityHashMap<>();
+        List<int[]> resampledImages = new ArrayList<>(texture.getTextures().size());
+        for(int[] image : texture.getTextures()) {
+            resampledImages.add(resampled.computeIfAbsent(image, i -> resample(i, w, h, newW, newH)));
+        }
+        return new TextureInfo(texture.getTextureOwner(), newW, newH, resampledImages, texture.getFrametimes(), texture.isInterpolate());
+    }
+
+    /** Resamples the image to the new size. Each new pixel is the average of the area of the image that it covers. */
+    private static int[] resample(int[] image, int w, int h, int newW, int newH) {
+        int[] result = new int[newW * newH];
+        double scaleX = (double) w / newW, scaleY = (double) h / newH;
+        double area = scaleX * scaleY;
+        for(int y = 0; y < newH; y++) {
+            double top = y * scaleY, bottom = (y + 1) * scaleY;
+            for(int x = 0; x < newW; x++) {
+                double left = x * scaleX, right = (x + 1) * scaleX;
+                double alpha = 0, red = 0, green = 0, blue = 0;
+                for(int sy = (int) top; sy < bottom && sy < h; sy++) {
+                    double coverY = Math.min(bottom, sy + 1) - Math.max(top, sy);
+                    for(int sx = (int) left; sx < right && sx < w; sx++) {
+                        double cover = coverY * (Math.min(right, sx + 1) - Math.max(left, sx));
+                        if(cover <= 0) continue;
+                        int c = image[sy * w + sx];
+                        // weighted by alpha, so that the color of transparent pixels doesn't bleed into the result
+                        double weight = (c >>> 24) * cover;
+                        alpha += weight;
+                        red += ((c >> 16) & 0xFF) * weight;
+                        green += ((c >> 8) & 0xFF) * weight;
+                        blue += (c & 0xFF) * weight;
                     }
                 }
+                int a = Math.min(0xFF, (int) Math.round(alpha / area));
+                if(a == 0) continue;
+                result[y * newW + x] = a << 24 | channel(red / alpha) << 16 | channel(green / alpha) << 8 | channel(blue / alpha);
             }
-            scaledImages.add(newImage);
         }
-        return new TextureInfo(texture.getTextureOwner(), scaledImages, texture.getFrametimes(), texture.isInterpolate());
+        return result;
+    }
+
+    private static int channel(double value) {
+        return Math.max(0, Math.min(0xFF, (int) Math.round(value)));
     }
 
     private static TextureInfo repeatAnimation(TextureInfo texture, int numRepeats) {
         if(numRepeats == 1) return texture;
-        List<BufferedImage> oldTextures = texture.getTextures();
+        List<int[]> oldTextures = texture.getTextures();
         List<Integer> oldFrametimes = texture.getFrametimes();
-        List<BufferedImage> newTextures = new ArrayList<>();
+        List<int[]> newTextures = new ArrayList<>();
         List<Integer> newFrametimes = new ArrayList<>();
         for(int i = 0; i < numRepeats; i++) {
             newTextures.addAll(oldTextures);
             newFrametimes.addAll(oldFrametimes);
         }
-        return new TextureInfo(texture.getTextureOwner(), newTextures, newFrametimes, texture.isInterpolate());
+        return new TextureInfo(texture.getTextureOwner(), texture.getWidth(), texture.getHeight(), newTextures, newFrametimes, texture.isInterpolate());
+    }
+
+    // upper bound for the number of frames generateCompactTexture makes from the repeated animations
+    private static long estimateFrameCount(TextureInfo base, TextureInfo ore) {
+        long animBase = base.getTotalAnimationTime(), animOre = ore.getTotalAnimationTime();
+        long animCommon = animBase / gcd((int) animBase, (int) animOre) * animOre;
+        return animCommon / animBase * base.getTextures().size() + animCommon / animOre * ore.getTextures().size();
     }
 
-    private static TextureInfo generateCompactTexture(TextureInfo base, TextureInfo ore, int maxOreLayerDiff) {
+    /**
+     * Changes the speed of the animation by at most 10% so that its length becomes a multiple or a divisor
+     * of the reference length.
+     * @return the changed animation, or null if there is no such length
+     */
+    private static TextureInfo snapAnimation(TextureInfo texture, int reference) {
+        int length = texture.getTotalAnimationTime();
+        int best = -1;
+        // candidates: the divisors and the multiples of the reference
+        for(int candidate : new int[] {reference / Math.max(1, Math.round((float) reference / length)),
+                reference * Math.max(1, Math.round((float) length / reference))}) {
+            if(reference % candidate != 0 && candidate % reference != 0) continue;
+            if(candidate < texture.getTextures().size() || Math.abs(candidate - length) * 10 > length) continue;
+            if(best == -1 || Math.abs(candidate - length) < Math.abs(best - length)) best = candidate;
+        }
+        if(best == -1) return null;
+        if(best == length) return texture;
+        // stretch the frametimes, distributing the rounding errors over all frames
+        List<Integer> frametimes = new ArrayList<>(texture.getFrametimes().size());
+        long elapsed = 0;
+        int newElapsed = 0;
+        for(int frametime : texture.getFrametimes()) {
+            elapsed += frametime;
+            int newFrametime = Math.max(1, (int) Math.round((double) elapsed * best / length) - newElapsed);
+            frametimes.add(newFrametime);
+            newElapsed += newFrametime;
+        }
+        // frames can't be shorter than one tick - take the excess from the longest frames
+        while(newElapsed > best) {
+            int longest = frametimes.indexOf(Collections.max(frametimes));
+            frametimes.set(longest, frametimes.get(longest) - 1);
+            newElapsed--;
+        }
+        return new TextureInfo(texture.getTextureOwner(), texture.getWidth(), texture.getHeight(), texture.getTextures(), frametimes, false);
+    }
+
+    /**
+     * Samples both animations at the same fixed interval, over the length of the longer one, so that the result
+     * has at most maxFrames frames. The shorter animation is cut off (or restarted) when the longer one loops.
+     */
+    private static TextureInfo[] sampleOnFrameGrid(TextureInfo base, TextureInfo ore, int maxFrames) {
+        int length = Math.max(base.getTotalAnimationTime(), ore.getTotalAnimationTime());
+        int step = (length + maxFrames - 1) / maxFrames;
+        List<Integer> frametimes = new ArrayList<>();
+        List<int[]> baseFrames = new ArrayList<>(), oreFrames = new ArrayList<>();
+        for(int time = 0; time < length; time += step) {
+            baseFrames.add(frameAt(base, time));
+            oreFrames.add(frameAt(ore, time));
+            frametimes.add(Math.min(step, length - time));
+        }
+        return new TextureInfo[] {
+                new TextureInfo(base.getTextureOwner(), base.getWidth(), base.getHeight(), baseFrames, frametimes, false),
+                new TextureInfo(ore.getTextureOwner(), ore.getWidth(), ore.getHeight(), oreFrames, frametimes, false)
+        };
+    }
+
+    // the frame that is shown at the given time (in ticks) of the looping animation
+    private static int[] frameAt(TextureInfo texture, int time) {
+        time %= texture.getTotalAnimationTime();
+        List<Integer> frametimes = texture.getFrametimes();
+        for(int i = 0; i < frametimes.size(); i++) {
+            time -= frametimes.get(i);
+            if(time < 0) return texture.getTextures().get(i);
+        }
+        return texture.getTextures().get(frametimes.size() - 1);
+    }
+
+    // baseKey is the key of the base in derivedBaseCache, or null if it isn't shared
+    private static TextureInfo generateCompactTexture(TextureInfo base, List<Object> baseKey, TextureInfo ore, int maxOreLayerDiff) {
         int animBase = base.getTotalAnimationTime();
         int animOre = ore.getTotalAnimationTime();
         ResourceLocation finalTextureOwner = new ResourceLocation(CompactOres.MODID,
                 "compact_" + ore.getTextureOwner().getNamespace() + "_" + ore.getTextureOwner().getPath());
+        int w = base.getWidth(), h = base.getHeight();
         if(animBase == 0 && animOre == 0) {
-            return new TextureInfo(finalTextureOwner,
-                    Collections.singletonList(actuallyFinallyMakeTheTexture(base.getTextures().get(0), ore.getTextures().get(0), maxOreLayerDiff)),
+            return new TextureInfo(finalTextureOwner, w, h,
+                    Collections.singletonList(actuallyFinallyMakeTheTexture(base.getTextures().get(0), baseKey, ore.getTextures().get(0), w, h, maxOreLayerDiff)),
                     Collections.singletonList(0), false);
         }
         int numFrames = Math.max(animBase, animOre);
@@ -195,11 +519,16 @@ public class CompactOreTexture {
         int baseFrametime = animBase == 0 ? Integer.MAX_VALUE : base.getFrametimes().get(0);
         int oreFrametime = animOre == 0 ? Integer.MAX_VALUE : ore.getFrametimes().get(0);
         int frametimeCounter = 0;
-        List<BufferedImage> finalTextures = new ArrayList<>(numFrames);
+        List<int[]> finalTextures = new ArrayList<>(numFrames);
         List<Integer> finalFrametimes = new ArrayList<>();
+        // the repeated animations show the same combinations of base and ore frame again and again - each combination
+        // is only generated once, and the resulting frame is shared (and stored once in the image, see encodeImage)
+        Map<int[], Map<int[], int[]>> combinations = new IdentityHashMap<>();
         for(int i = 0; i < numFrames; i++) {
             if(baseFrame != baseFramePrev || oreFrame != oreFramePrev) {
-                finalTextures.add(actuallyFinallyMakeTheTexture(base.getTextures().get(baseFrame), ore.getTextures().get(oreFrame), maxOreLayerDiff));
+                int[] baseImage = base.getTextures().get(baseFrame), oreImage = ore.getTextures().get(oreFrame);
+                finalTextures.add(combinations.computeIfAbsent(baseImage, b -> new IdentityHashMap<>())
+                        .computeIfAbsent(oreImage, o -> actuallyFinallyMakeTheTexture(baseImage, baseKey, oreImage, w, h, maxOreLayerDiff)));
                 baseFramePrev = baseFrame;
                 oreFramePrev = oreFrame;
             }
@@ -222,60 +551,160 @@ public class CompactOreTexture {
             }
         }
         finalFrametimes.add(frametimeCounter);
-        return new TextureInfo(finalTextureOwner, finalTextures, finalFrametimes, false);
+        return new TextureInfo(finalTextureOwner, w, h, finalTextures, finalFrametimes, false);
     }
 
-    private static BufferedImage actuallyFinallyMakeTheTexture(BufferedImage base, BufferedImage ore, int maxOreLayerDiff) {
-        int w = base.getWidth(), h = base.getHeight();
-        BufferedImage oreLayer = maxOreLayerDiff < 0 ?
-                findOreLayerExactMatch(base, ore, w, h) : findOreLayerAttempt3(base, ore, w, h, maxOreLayerDiff);
-        BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = result.createGraphics();
+    private static TextureInfo generateOverlayTexture(ResourceLocation baseLocation, TextureInfo base, TextureInfo ore, int maxOreLayerDiff) {
+        RockColorIndex baseLayerIndex = getRockColorIndex(Arrays.asList(baseLocation, maxOreLayerDiff), () -> {
+            // the overlay is shown on top of every frame of the base texture, so the colors of all frames are rock colors
+            int[] baseColors = new int[base.getWidth() * base.getHeight() * base.getTextures().size()];
+            int i = 0;
+            for(int[] frame : base.getTextures()) {
+                int[] colors = rockColors(frame);
+                System.arraycopy(colors, 0, baseColors, i, colors.length);
+                i += colors.length;
+            }
+            return new RockColorIndex(baseColors, maxOreLayerDiff);
+        });
+        int w = ore.getWidth(), h = ore.getHeight();
+        // frames that are shown multiple times are the same array, so they only need to be processed once
+        Map<int[], int[]> overlays = new IdentityHashMap<>();
+        List<int[]> frames = new ArrayList<>(ore.getTextures().size());
+        for(int[] frame : ore.getTextures()) {
+            frames.add(overlays.computeIfAbsent(frame, f -> makeOverlay(f, baseLayerIndex, w, h)));
+        }
+        ResourceLocation owner = new ResourceLocation(CompactOres.MODID,
+                "compact_" + ore.getTextureOwner().getNamespace() + "_" + ore.getTextureOwner().getPath());
+        return new TextureInfo(owner, w, h, frames, ore.getFrametimes(), ore.isInterpolate());
+    }
+
+    // like actuallyFinallyMakeTheTexture, just without the background rock
+    private static int[] makeOverlay(int[] ore, RockColorIndex baseLayerIndex, int w, int h) {
+        int[] oreLayer = findOreLayer(ore, baseLayerIndex);
+        int[] result = new int[w * h];
+        int xOff = Math.max(1, w / 16), yOff = Math.max(1, h / 16);
+        blendOver(result, redrawOreBase ? ore : oreLayer, w, h, 0, 0);
+        blendOver(result, oreLayer, w, h, xOff, yOff);
+        blendOver(result, oreLayer, w, h, -xOff, -yOff);
+        blendOver(result, oreLayer, w, h, xOff, 0);
+        return result;
+    }
+
+    private static int[] actuallyFinallyMakeTheTexture(int[] base, List<Object> baseKey, int[] ore, int w, int h, int maxOreLayerDiff) {
+        int[] oreLayer = findOreLayer(base, baseKey, ore, maxOreLayerDiff);
+        // The result is opaque, so it starts out black (like an empty TYPE_INT_RGB image would)
+        int[] result = new int[w * h];
+        Arrays.fill(result, 0xFF000000);
         int xOff = Math.max(1, w / 16), yOff = Math.max(1, h / 16);
         // Start with the background rock
-        g.drawImage(base, 0, 0, null);
+        drawOver(result, base, w, h, 0, 0);
         // Then add the ore on top (optionally with the ore's rock, specified by the config file)
-        g.drawImage(redrawOreBase ? ore : oreLayer, 0, 0, null);
-        g.drawImage(oreLayer, xOff, yOff, null);
-        g.drawImage(oreLayer, -xOff, -yOff, null);
-        g.drawImage(oreLayer, xOff, 0, null);
+        drawOver(result, redrawOreBase ? ore : oreLayer, w, h, 0, 0);
+        drawOver(result, oreLayer, w, h, xOff, yOff);
+        drawOver(result, oreLayer, w, h, -xOff, -yOff);
+        drawOver(result, oreLayer, w, h, xOff, 0);
         return result;
     }
 
-    private static BufferedImage findOreLayerExactMatch(BufferedImage base, BufferedImage ore, int w, int h) {
-        BufferedImage oreLayer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        for(int x = 0; x < w; x++) {
-            for(int y = 0; y < h; y++) {
-                if(ore.getRGB(x, y) != base.getRGB(x, y)) {
-                    oreLayer.setRGB(x, y, ore.getRGB(x, y));
+    /** Alpha-composites src (moved by xOff, yOff) over the opaque dst, equivalent to Graphics2D.drawImage. */
+    private static void drawOver(int[] dst, int[] src, int w, int h, int xOff, int yOff) {
+        int minX = Math.max(0, xOff), maxX = Math.min(w, w + xOff);
+        int minY = Math.max(0, yOff), maxY = Math.min(h, h + yOff);
+        for(int y = minY; y < maxY; y++) {
+            int dstIndex = y * w + minX;
+            int srcIndex = (y - yOff) * w + minX - xOff;
+            for(int x = minX; x < maxX; x++, dstIndex++, srcIndex++) {
+                int s = src[srcIndex];
+                int alpha = s >>> 24;
+                if(alpha == 0xFF) {
+                    dst[dstIndex] = s;
+                } else if(alpha != 0) {
+                    int d = dst[dstIndex];
+                    int inv = 0xFF - alpha;
+                    int red = (((s >> 16) & 0xFF) * alpha + ((d >> 16) & 0xFF) * inv + 127) / 0xFF;
+                    int green = (((s >> 8) & 0xFF) * alpha + ((d >> 8) & 0xFF) * inv + 127) / 0xFF;
+                    int blue = ((s & 0xFF) * alpha + (d & 0xFF) * inv + 127) / 0xFF;
+                    dst[dstIndex] = 0xFF000000 | red << 16 | green << 8 | blue;
                 }
             }
         }
-        return oreLayer;
     }
 
-    private static BufferedImage findOreLayerAttempt3(BufferedImage base, BufferedImage ore, int w, int h, int maxDiff) {
-        BufferedImage oreLayer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        HashSet<Integer> baseLayerColors = new HashSet<>();
-        for(int x = 0; x < w; x++) {
-            for(int y = 0; y < h; y++) {
-                baseLayerColors.add(base.getRGB(x, y));
+    /** Alpha-composites src (moved by xOff, yOff) over dst, which may be (partially) transparent. */
+    private static void blendOver(int[] dst, int[] src, int w, int h, int xOff, int yOff) {
+        int minX = Math.max(0, xOff), maxX = Math.min(w, w + xOff);
+        int minY = Math.max(0, yOff), maxY = Math.min(h, h + yOff);
+        for(int y = minY; y < maxY; y++) {
+            int dstIndex = y * w + minX;
+            int srcIndex = (y - yOff) * w + minX - xOff;
+            for(int x = minX; x < maxX; x++, dstIndex++, srcIndex++) {
+                int s = src[srcIndex];
+                int alpha = s >>> 24;
+                if(alpha == 0) continue;
+                int d = dst[dstIndex];
+                if(alpha == 0xFF || d >>> 24 == 0) {
+                    dst[dstIndex] = s;
+                    continue;
+                }
+                // how much of the destination still shines through
+                int dstWeight = (d >>> 24) * (0xFF - alpha) / 0xFF;
+                int outAlpha = alpha + dstWeight;
+                int red = (((s >> 16) & 0xFF) * alpha + ((d >> 16) & 0xFF) * dstWeight + outAlpha / 2) / outAlpha;
+                int green = (((s >> 8) & 0xFF) * alpha + ((d >> 8) & 0xFF) * dstWeight + outAlpha / 2) / outAlpha;
+                int blue = ((s & 0xFF) * alpha + (d & 0xFF) * dstWeight + outAlpha / 2) / outAlpha;
+                dst[dstIndex] = outAlpha << 24 | red << 16 | green << 8 | blue;
             }
         }
-        for(int x = 0; x < w; x++) {
-            for(int y = 0; y < h; y++) {
-                int a = ore.getRGB(x, y);
-                boolean isRock = false;
-                for(int c : baseLayerColors) {
-                    int diff = Math.abs(r(a)-r(c))+Math.abs(g(a)-g(c))+Math.abs(b(a)-b(c));
-                    if(diff <= maxDiff) {
-                        isRock = true;
-                        break;
-                    }
-                }
-                if(!isRock) {
-                    oreLayer.setRGB(x, y, a);
-                }
+    }
+
+    // baseKey is the key of the texture that the base frame belongs to in derivedBaseCache, or null
+    private static int[] findOreLayer(int[] base, List<Object> baseKey, int[] ore, int maxOreLayerDiff) {
+        return maxOreLayerDiff < 0 ? findOreLayerExactMatch(base, ore) : findOreLayerAttempt3(base, baseKey, ore, maxOreLayerDiff);
+    }
+
+    private static int[] findOreLayerExactMatch(int[] base, int[] ore) {
+        int[] oreLayer = new int[ore.length];
+        for(int i = 0; i < oreLayer.length; i++) {
+            if(ore[i] != base[i]) {
+                oreLayer[i] = ore[i];
+            }
+        }
+        return oreLayer;
+    }
+
+    private static int[] findOreLayerAttempt3(int[] base, List<Object> baseKey, int[] ore, int maxDiff) {
+        // frames of derived bases are shared between ores (see deriveBase), so their color index is too - all other
+        // frames only belong to a single ore
+        RockColorIndex index = baseKey == null ? new RockColorIndex(rockColors(base), maxDiff) :
+                getRockColorIndex(Arrays.asList(base, maxDiff), () -> new RockColorIndex(rockColors(base), maxDiff));
+        return findOreLayer(ore, index);
+    }
+
+    private static RockColorIndex getRockColorIndex(List<Object> key, Callable<RockColorIndex> computation) {
+        try {
+            return getOrCompute(rockColorIndexCache, key, computation);
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int[] rockColors(int[] base) {
+        int[] baseLayerColors = new int[base.length];
+        for(int i = 0; i < base.length; i++) {
+            int c = base[i];
+            baseLayerColors[i] = (r(c) << 16) | (g(c) << 8) | b(c);
+        }
+        return baseLayerColors;
+    }
+
+    private static int[] findOreLayer(int[] ore, RockColorIndex baseLayerIndex) {
+        int[] oreLayer = new int[ore.length];
+        for(int i = 0; i < ore.length; i++) {
+            int a = ore[i];
+            if(!baseLayerIndex.matches(r(a), g(a), b(a))) {
+                oreLayer[i] = a;
             }
         }
         return oreLayer;
@@ -294,9 +723,12 @@ public class CompactOreTexture {
     }
 
     private static int gcd(int a, int b) {
-        if(a == b) return a;
-        else if(a > b) return gcd(a - b, b);
-        else return gcd(a, b - a);
+        while(b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 
     private static int lcm(int a, int b) {
@@ -305,12 +737,18 @@ public class CompactOreTexture {
 
     public static class TextureInfo {
         private ResourceLocation textureOwner;
-        private List<BufferedImage> textures;
+        private int width;
+        private int height;
+        // packed ARGB frames of width x height pixels each - frames are never modified after they were created,
+        // so the same array may be used for multiple frames or textures
+        private List<int[]> textures;
         private List<Integer> frametimes;
         private boolean interpolate;
-        public TextureInfo(ResourceLocation textureOwner, List<BufferedImage> textures,
+        public TextureInfo(ResourceLocation textureOwner, int width, int height, List<int[]> textures,
                            List<Integer> frametimes, boolean interpolate) {
             this.textureOwner = textureOwner;
+            this.width = width;
+            this.height = height;
             this.textures = textures;
             this.frametimes = frametimes;
             this.interpolate = interpolate;
@@ -318,7 +756,7 @@ public class CompactOreTexture {
         public ResourceLocation getTextureOwner() {
             return textureOwner;
         }
-        public List<BufferedImage> getTextures() {
+        public List<int[]> getTextures() {
             return textures;
         }
         public List<Integer> getFrametimes() {
@@ -331,21 +769,24 @@ public class CompactOreTexture {
             return frametimes.stream().mapToInt(t -> t).sum();
         }
         public int getWidth() {
-            return textures.get(0).getWidth();
+            return width;
         }
         public int getHeight() {
-            return textures.get(0).getHeight();
-        }
-        public BufferedImage generateImage() {
-            int imgHeight = getHeight();
-            BufferedImage img = new BufferedImage(getWidth(), imgHeight * textures.size(), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = img.createGraphics();
-            for(int i = 0; i < textures.size(); i++) {
-                g.drawImage(textures.get(i), 0, i * imgHeight, null);
+            return height;
+        }
+        /**
+         * Frames that are shown multiple times are only stored once in the image.
+         * @return the position in the image of every distinct frame
+         */
+        private Map<int[], Integer> indexDistinctFrames() {
+            Map<int[], Integer> indices = new IdentityHashMap<>();
+            for(int[] frame : textures) {
+                indices.putIfAbsent(frame, indices.size());
             }
-            return img;
+            return indices;
         }
         public JsonObject generateMeta() {
+            Map<int[], Integer> indices = indexDistinctFrames();
             JsonObject meta = new JsonObject();
             JsonObject animation = new JsonObject();
             animation.addProperty("interpolate", interpolate);
@@ -354,7 +795,7 @@ public class CompactOreTexture {
             JsonArray frames = new JsonArray();
             for(int i = 0; i < frametimes.size(); i++) {
                 JsonObject frame = new JsonObject();
-                frame.addProperty("index", i);
+                frame.addProperty("index", indices.get(textures.get(i)));
                 frame.addProperty("time", frametimes.get(i));
                 frames.add(frame);
             }
@@ -362,20 +803,37 @@ public class CompactOreTexture {
             meta.add("animation", animation);
             return meta;
         }
-        public static TextureInfo generate(ResourceLocation textureOwner, ResourceLocation texture) throws IOException {
-            ResourceLocation metaLocation = new ResourceLocation(texture.getNamespace(), texture.getPath() + ".mcmeta");
-            IResourceManager rm = Minecraft.getInstance().getResourceManager();
-            IResource texRes = rm.getResource(texture);
-            BufferedImage tex = Utils.loadImage(texRes.getInputStream());
-            ArrayList<BufferedImage> textures = new ArrayList<>(1);
-            textures.add(tex);
+        /** @return the contents of the .png file for this texture, compressed for storage */
+        public byte[] encodeImage() throws IOException {
+            return encodeImage(PngWriter.getCompressionLevel());
+        }
+        /** @param compressionLevel the deflate level, see {@link PngWriter#write(java.io.OutputStream, int, int, List, int)} */
+        public byte[] encodeImage(int compressionLevel) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            // the frames are stacked vertically while they are written, without building the frame strip first
+            Map<int[], Integer> indices = indexDistinctFrames();
+            int[][] frames = new int[indices.size()][];
+            indices.forEach((frame, index) -> frames[index] = frame);
+            PngWriter.write(baos, width, height, Arrays.asList(frames), compressionLevel);
+            return baos.toByteArray();
+        }
+        /** @return the contents of the .png.mcmeta file for this texture */
+        public byte[] encodeMeta() {
+            return generateMeta().toString().getBytes(StandardCharsets.UTF_8);
+        }
+        public static TextureInfo generate(ResourceLocation textureOwner, RawTexture texture) throws IOException {
+            ArgbImage tex = Utils.loadImage(texture.getTexture());
+            ArrayList<int[]> textures = new ArrayList<>(1);
+            textures.add(tex.getPixels());
+            int frameWidth = tex.getWidth(), frameHeight = tex.getHeight();
             ArrayList<Integer> frametimes = new ArrayList<>(1);
             frametimes.add(0);
             boolean interpolate = false;
             Number width = 1, height = 1;
             int frametime = 1;
             try {
-                JsonObject meta = new JsonParser().parse(new InputStreamReader(rm.getResource(metaLocation).getInputStream())).getAsJsonObject();
+                if(texture.getMeta() == null) throw new FileNotFoundException(texture.getLocation() + ".mcmeta");
+                JsonObject meta = new JsonParser().parse(new String(texture.getMeta(), StandardCharsets.UTF_8)).getAsJsonObject();
                 if(!meta.has("animation") || !(meta.get("animation") instanceof JsonObject)) throw new ClassCastException();
                 JsonObject animation = meta.getAsJsonObject("animation");
                 if(animation.has("interpolate") && animation.get("interpolate").isJsonPrimitive() &&
@@ -395,14 +853,14 @@ public class CompactOreTexture {
                     frametime = animation.get("frametime").getAsInt();
                     frametimes.add(frametime);
                 }
+                frameHeight = (int) Math.round(frameWidth * height.doubleValue() / width.doubleValue());
+                // frames which are used multiple times share the same pixel array
+                Map<Integer, int[]> framesByIndex = new HashMap<>();
                 if(animation.has("frames") && animation.get("frames").isJsonArray()) {
                     JsonArray frames;
-                    int frameWidth, frameHeight;
                     frames = animation.getAsJsonArray("frames");
                     textures.clear();
                     frametimes.remove(0);
-                    frameWidth = tex.getWidth();
-                    frameHeight = (int) Math.round(frameWidth * height.doubleValue() / width.doubleValue());
                     for(JsonElement entry : frames) {
                         int index = 0, time = frametime;
                         if(entry.isJsonPrimitive() && entry.getAsJsonPrimitive().isNumber()) {
@@ -419,40 +877,110 @@ public class CompactOreTexture {
                             }
                         }
                         frametimes.add(time);
-                        int y = index * frameHeight;
-                        textures.add(tex.getSubimage(0, y, frameWidth, frameHeight));
+                        int[] frame = framesByIndex.get(index);
+                        if(frame == null) {
+                            frame = tex.copyRows(index * frameHeight, frameHeight);
+                            framesByIndex.put(index, frame);
+                        }
+                        textures.add(frame);
                     }
                 } else {
                     textures.clear();
                     frametimes.clear();
-                    int frameWidth = tex.getWidth();
-                    int frameHeight = (int) Math.round(frameWidth * height.doubleValue() / width.doubleValue());
                     for(int i = 0; i * frameHeight < tex.getHeight(); i++) {
-                        textures.add(tex.getSubimage(0, i * frameHeight, frameWidth, frameHeight));
+                        textures.add(tex.copyRows(i * frameHeight, frameHeight));
                         frametimes.add(frametime);
                     }
                 }
-                return new TextureInfo(textureOwner, textures, frametimes, interpolate);
+                return new TextureInfo(textureOwner, frameWidth, frameHeight, textures, frametimes, interpolate);
             } catch(IOException | ClassCastException e) {
-                return new TextureInfo(textureOwner, textures, frametimes, interpolate);
+                // no (valid) animation - use the whole image as a single frame
+                return new TextureInfo(textureOwner, tex.getWidth(), tex.getHeight(),
+                        Collections.singletonList(tex.getPixels()), Collections.singletonList(0), false);
             }
         }
     }
 
-    public static void registerCacheInvalidator() {
-        ((IReloadableResourceManager)Minecraft.getInstance().getResourceManager()).addReloadListener(
-                (ISelectiveResourceReloadListener) (resourceManager, resourcePredicate) -> {
-                    if(resourcePredicate.test(VanillaResourceType.TEXTURES)) {
-                        // All texture caches are invalidated here immediately AFTER resource loading has COMPLETED.
-                        baseTextureCache.clear();
-                        generatedTextureCache.clear();
-                    }
-                }
-        );
+    /** The unprocessed contents of a texture and its metadata, as provided by the resource manager. */
+    public static class RawTexture {
+        private final ResourceLocation location;
+        private final byte[] texture;
+        private final byte[] meta;
+        private volatile byte[] fingerprint;
+        public RawTexture(ResourceLocation location, byte[] texture, byte[] meta) {
+            this.location = location;
+            this.texture = texture;
+            this.meta = meta;
+        }
+        public ResourceLocation getLocation() {
+            return location;
+        }
+        public byte[] getTexture() {
+            return texture;
+        }
+        /** @return the contents of the .mcmeta file, or null if the texture doesn't have one */
+        public byte[] getMeta() {
+            return meta;
+        }
+        /** @return a hash of the texture and its metadata, which changes whenever either of them changes */
+        public byte[] getFingerprint() {
+            if(fingerprint == null) {
+                fingerprint = TextureCache.fingerprint(texture, meta);
+            }
+            return fingerprint;
+        }
+        public static RawTexture load(TextureSource source, ResourceLocation texture) throws IOException {
+            ResourceLocation metaLocation = new ResourceLocation(texture.getNamespace(), texture.getPath() + ".mcmeta");
+            byte[] textureBytes = source.read(texture);
+            byte[] metaBytes;
+            try {
+                metaBytes = source.read(metaLocation);
+            } catch(IOException e) {
+                // textures without (readable) metadata simply aren't animated
+                metaBytes = null;
+            }
+            return new RawTexture(texture, textureBytes, metaBytes);
+        }
+    }
+
+    /** Drops all decoded and generated frames. Generating a texture again after this starts from scratch. */
+    public static void releaseFrameCaches() {
+        baseTextureCache.clear();
+        derivedBaseCache.clear();
+        rockColorIndexCache.clear();
+        generatedTextureCache.clear();
     }
 
     public static void setRedrawOreBase(boolean redrawOreBase) {
         CompactOreTexture.redrawOreBase = redrawOreBase;
     }
 
+    public static boolean isRedrawOreBase() {
+        return redrawOreBase;
+    }
+
+    public static void setMaxTextureResolution(int maxTextureResolution) {
+        CompactOreTexture.maxTextureResolution = maxTextureResolution;
+    }
+
+    public static int getMaxTextureResolution() {
+        return maxTextureResolution;
+    }
+
+    public static void setMaxAnimationFrames(int maxAnimationFrames) {
+        CompactOreTexture.maxAnimationFrames = maxAnimationFrames;
+    }
+
+    public static int getMaxAnimationFrames() {
+        return maxAnimationFrames;
+    }
+
+    public static void setUseOverlayModels(boolean useOverlayModels) {
+        CompactOreTexture.useOverlayModels = useOverlayModels;
+    }
+
+    public static boolean isUseOverlayModels() {
+        return useOverlayModels;
+    }
+
 }
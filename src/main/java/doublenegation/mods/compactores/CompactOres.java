@@ -6,6 +6,8 @@ import net.minecraft.block.BlockState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.screen.MainMenuScreen;
 import net.minecraft.client.gui.screen.Screen;
+import net.minecraft.client.renderer.RenderType;
+import net.minecraft.client.renderer.RenderTypeLookup;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemGroup;
@@ -23,6 +25,7 @@ import net.minecraftforge.fml.DistExecutor;
 import net.minecraftforge.fml.ModList;
 import net.minecraftforge.fml.RegistryObject;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
 import net.minecraftforge.fml.event.lifecycle.FMLLoadCompleteEvent;
 import net.minecraftforge.fml.event.server.FMLServerAboutToStartEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
@@ -31,6 +34,7 @@ import net.minecraftforge.registries.ForgeRegistries;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -97,7 +101,10 @@ public class CompactOres
         DistExecutor.runWhenOn(Dist.CLIENT, () -> () -> {
             LOGGER.info("Attaching CompactOre resources to the Minecraft client");
             Minecraft.getInstance().getResourcePackList().addPackFinder(resourcePack);
-            CompactOreTexture.registerCacheInvalidator();
+            resourcePack.registerCacheInvalidator();
+            resourcePack.registerResourcePreparation();
+            FMLJavaModLoadingContext.get().getModEventBus().addListener(resourcePack::onTextureStitched);
+            FMLJavaModLoadingContext.get().getModEventBus().addListener(this::clientSetup);
         });
 
         // I have no idea when network code should be initialized, so I'll just do it here
@@ -148,6 +155,13 @@ public class CompactOres
         CompactOreWorldGen.init(compactOres);
     }
 
+    private void clientSetup(final FMLClientSetupEvent event) {
+        // the overlay models have transparent parts
+        if(CompactOreTexture.isUseOverlayModels()) {
+            RenderTypeLookup.setRenderLayer(COMPACT_ORE.get(), RenderType.getCutoutMipped());
+        }
+    }
+
     public static ItemGroup getItemGroup() {
         return itemGroup;
     }
@@ -155,6 +169,18 @@ public class CompactOres
     public void startServer(final FMLServerAboutToStartEvent event) {
         LOGGER.info("Attaching CompactOre resources to the Minecraft server");
         event.getServer().getResourcePacks().addPackFinder(resourcePack);
+        if(TextureBaker.isExportServerPack() && event.getServer().isDedicatedServer()) {
+            // baking takes a while, the server doesn't have to wait for it
+            Thread exportThread = new Thread(() -> {
+                try {
+                    TextureBaker.exportServerPack(compactOres());
+                } catch(IOException | RuntimeException e) {
+                    LOGGER.error("Unable to export the compact ore server resource pack", e);
+                }
+            }, "CompactOres server resource pack export");
+            exportThread.setDaemon(true);
+            exportThread.start();
+        }
     }
 
     // global block break listener that fires multiple events for the base block when a compact ore is broken
@@ -3,32 +3,82 @@ package doublenegation.mods.compactores;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.texture.AtlasTexture;
+import net.minecraft.client.renderer.texture.MipmapGenerator;
+import net.minecraft.client.renderer.texture.NativeImage;
+import net.minecraft.client.renderer.texture.TextureAtlasSprite;
 import net.minecraft.resources.*;
 import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.client.event.TextureStitchEvent;
 import net.minecraftforge.fml.DistExecutor;
+import net.minecraftforge.resource.ISelectiveResourceReloadListener;
+import net.minecraftforge.resource.SelectiveReloadStateHandler;
+import net.minecraftforge.resource.VanillaResourceType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
 
-import javax.imageio.ImageIO;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 public class CompactOresResourcePack implements IPackFinder {
 
     private static final Logger LOGGER = LogManager.getLogger();
     private static final String PACK_NAME = "CompactOres dynamic resources";
+    private static final ForkJoinPool TEXTURE_GENERATION_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("CompactOres texture generator " + thread.getPoolIndex());
+        // the workers need to be able to load mod classes
+        thread.setContextClassLoader(CompactOresResourcePack.class.getClassLoader());
+        return thread;
+    }, null, false);
 
     private Supplier<List<CompactOre>> oreListSupplier;
     private Map<String, Supplier<byte[]>> packData;
     private InMemoryResourcePack pack;
+    private Map<CompactOre, CompletableFuture<GeneratedTexture>> textureTasks;
+    // per resource reload, see getTextureOwners
+    private CompletableFuture<Map<CompactOre, CompactOre>> textureOwners;
+    // the input textures of the current resource reload, shared between all ores that use them
+    private final Map<ResourceLocation, CompletableFuture<CompactOreTexture.RawTexture>> rawTextures = new ConcurrentHashMap<>();
+    // generated textures, kept across resource reloads by texture cache key, in least recently used order - the ones
+    // that don't fit into maxRetainedTextureBytes can still be loaded from the texture cache
+    private final LinkedHashMap<String, GeneratedTexture> retainedTextures = new LinkedHashMap<>(16, .75f, true);
+    private long retainedTextureBytes = 0;
+    private static final MappedTextureStore TEXTURE_STORE = new MappedTextureStore();
+    private static long maxRetainedTextureBytes = 32L * 1024L * 1024L;
+    private static boolean progressiveTextures = false;
+    // textures that were stitched as placeholders, and are uploaded into the atlas when they are done
+    private final Map<CompactOre, CompletableFuture<GeneratedTexture>> pendingTextures = new ConcurrentHashMap<>();
+    // counts atlas stitches, so that textures of an outdated atlas are never uploaded
+    private volatile int stitchCount = 0;
+    private final List<MemoizedResource> memoizedResources = new CopyOnWriteArrayList<>();
+    // per resource reload, see getExistingMetaFiles
+    private volatile Set<String> existingMetaFiles;
 
     public CompactOresResourcePack(Supplier<List<CompactOre>> oreListSupplier) {
         this.oreListSupplier = oreListSupplier;
@@ -38,26 +88,43 @@ public class CompactOresResourcePack implements IPackFinder {
         if(pack == null) {
             packData = new HashMap<>();
             generatePack(packData);
-            pack = new InMemoryResourcePack(PACK_NAME, packData, path -> {
-                if(!path.endsWith(".mcmeta")) return true;
-                return DistExecutor.runForDist(() -> () -> {
-                    // Client only, server is always false
-                    String[] split = path.split("/");
-                    String filename = split[split.length - 1];
-                    String name = filename.substring(0, filename.length() - ".png.mcmeta".length());
-                    CompactOre ore = CompactOres.getForResourceName(name);
-                    if(ore == null) return false;
+            pack = new InMemoryResourcePack(PACK_NAME, packData, path -> !path.endsWith(".mcmeta") || getExistingMetaFiles().contains(path));
+        }
+        return pack;
+    }
+
+    /**
+     * Generated textures are only animated (and only have metadata) if one of their input textures is.
+     * That is decided once per resource reload for all ores, the set is dropped at the start and end of every reload.
+     */
+    private Set<String> getExistingMetaFiles() {
+        Set<String> metaFiles = existingMetaFiles;
+        if(metaFiles == null) {
+            metaFiles = DistExecutor.runForDist(() -> () -> {
+                // Client only, server is always empty
+                Set<String> files = new HashSet<>();
+                IResourceManager rm = Minecraft.getInstance().getResourceManager();
+                for(CompactOre ore : oreListSupplier.get()) {
                     ResourceLocation baseTexture = ore.getBaseUnderlyingTexture();
                     ResourceLocation oreTexture = ore.getBaseOreTexture();
-                    if(!ore.isGenerateTexture() || baseTexture == null || oreTexture == null) return false;
+                    if(!ore.isGenerateTexture() || baseTexture == null || oreTexture == null) continue;
                     ResourceLocation baseMeta = new ResourceLocation(baseTexture.getNamespace(), baseTexture.getPath() + ".mcmeta");
                     ResourceLocation oreMeta = new ResourceLocation(oreTexture.getNamespace(), oreTexture.getPath() + ".mcmeta");
-                    IResourceManager rm = Minecraft.getInstance().getResourceManager();
-                    return rm.hasResource(baseMeta) || rm.hasResource(oreMeta);
-                }, () -> () -> false);
-            });
+                    // overlays are only animated like the ore texture, the game animates the base texture itself
+                    if(rm.hasResource(oreMeta) || (!CompactOreTexture.usesOverlayModel(ore) && rm.hasResource(baseMeta))) {
+                        files.add(getTexturePath(ore) + ".mcmeta");
+                    }
+                }
+                return files;
+            }, () -> () -> new HashSet<>());
+            existingMetaFiles = metaFiles;
         }
-        return pack;
+        return metaFiles;
+    }
+
+    private static String getTexturePath(CompactOre ore) {
+        return "assets/" + CompactOres.COMPACT_ORE.getId().getNamespace() + "/textures/" +
+                CompactOreBlock.ORE_PROPERTY.getName(ore) + ".png";
     }
 
     private void generatePack(Map<String, Supplier<byte[]>> resPack) {
@@ -73,10 +140,11 @@ public class CompactOresResourcePack implements IPackFinder {
         resPack.put("pack.mcmeta", () -> packmcmetaBytes);
         // pack.mcmeta end
         // pack.png start - to prevent crash on opening resource packs menu
-        BufferedImage packpng = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        int[] packpng = new int[16 * 16];
+        Arrays.fill(packpng, 0xFF000000);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            ImageIO.write(packpng, "PNG", baos);
+            PngWriter.write(baos, new ArgbImage(16, 16, packpng));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -157,14 +225,56 @@ public class CompactOresResourcePack implements IPackFinder {
     private void makeBlockModel(Map<String, Supplier<byte[]>> resourcePack, CompactOre ore) {
         ResourceLocation name = new ResourceLocation(CompactOres.COMPACT_ORE.getId().getNamespace(),
                 CompactOreBlock.ORE_PROPERTY.getName(ore));
+        // the model is only made when it's requested, because the texture it uses depends on the loaded resources
+        resourcePack.put("assets/" + name.getNamespace() + "/models/block/" + name.getPath() + ".json",
+                memoize(() -> makeBlockModel(ore).toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private JsonObject makeBlockModel(CompactOre ore) {
+        // ores with identical textures share one of them
+        ResourceLocation name = new ResourceLocation(CompactOres.COMPACT_ORE.getId().getNamespace(),
+                CompactOreBlock.ORE_PROPERTY.getName(getTextureOwners().getOrDefault(ore, ore)));
         JsonObject model = new JsonObject();
-        model.addProperty("parent", "minecraft:block/cube_all");
         JsonObject textures = new JsonObject();
-        textures.addProperty("all", name.getNamespace() + ":" + name.getPath());
+        if(CompactOreTexture.usesOverlayModel(ore)) {
+            // the unmodified base texture, with the generated ore overlay on top of it
+            ResourceLocation base = ore.getBaseUnderlyingTexture();
+            String baseName = base.getNamespace() + ":" + base.getPath().substring("textures/".length(), base.getPath().length() - ".png".length());
+            model.addProperty("parent", "minecraft:block/block");
+            textures.addProperty("particle", baseName);
+            textures.addProperty("base", baseName);
+            textures.addProperty("overlay", name.getNamespace() + ":" + name.getPath());
+            JsonArray elements = new JsonArray();
+            elements.add(makeCubeElement("#base"));
+            elements.add(makeCubeElement("#overlay"));
+            model.add("elements", elements);
+        } else {
+            model.addProperty("parent", "minecraft:block/cube_all");
+            textures.addProperty("all", name.getNamespace() + ":" + name.getPath());
+        }
         model.add("textures", textures);
-        final byte[] bytes = model.toString().getBytes(StandardCharsets.UTF_8);
-        resourcePack.put("assets/" + name.getNamespace() + "/models/block/" + name.getPath() + ".json",
-                () -> bytes);
+        return model;
+    }
+
+    private JsonObject makeCubeElement(String texture) {
+        JsonObject element = new JsonObject();
+        JsonArray from = new JsonArray();
+        JsonArray to = new JsonArray();
+        for(int i = 0; i < 3; i++) {
+            from.add(0);
+            to.add(16);
+        }
+        element.add("from", from);
+        element.add("to", to);
+        JsonObject faces = new JsonObject();
+        for(String direction : new String[] {"down", "up", "north", "south", "west", "east"}) {
+            JsonObject face = new JsonObject();
+            face.addProperty("texture", texture);
+            face.addProperty("cullface", direction);
+            faces.add(direction, face);
+        }
+        element.add("faces", faces);
+        return element;
     }
 
     private void makeItemModel(Map<String, Supplier<byte[]>> resourcePack, List<CompactOre> ores) {
@@ -189,51 +299,451 @@ public class CompactOresResourcePack implements IPackFinder {
 
     private void makeBlockTexture(Map<String, Supplier<byte[]>> resourcePack, final CompactOre ore) {
         if(ore.isGenerateTexture()) {
-            resourcePack.put("assets/" + CompactOres.COMPACT_ORE.getId().getNamespace() + "/textures/" +
-                    CompactOreBlock.ORE_PROPERTY.getName(ore) + ".png", () -> {
-                try {
-                    CompactOreTexture.TextureInfo info = CompactOreTexture.generate(null, ore.getBaseUnderlyingTexture(),
-                            ore.getBaseBlockRegistryName(), ore.getBaseOreTexture(), ore.getMaxOreLayerColorDiff());
-                    BufferedImage img = info.generateImage();
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ImageIO.write(img, "PNG", baos);
-                    if ("true".equals(System.getProperty("compactores.dumpTextures"))) {
-                        TextureDumper.dump(ore, baos.toByteArray());
-                    }
-                    return baos.toByteArray();
-                } catch (Exception e) {
-                    LOGGER.error("Failed to generate compact ore texture for " + CompactOreBlock.ORE_PROPERTY.getName(ore) + ", using missing texture instead.");
-                    logExceptionCauseList(e);
-                    // missing texture
-                    BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
-                    Graphics2D g = img.createGraphics();
-                    g.setColor(Color.BLACK);
-                    g.fillRect(0, 0, 16, 16);
-                    g.setColor(Color.MAGENTA);
-                    g.fillRect(0, 8, 8, 8);
-                    g.fillRect(8, 0, 8, 8);
+            // not memoized: it may be a placeholder, and the generated texture already is a buffer of its own
+            resourcePack.put(getTexturePath(ore), (InMemoryResourcePack.BufferedResource) () -> getTextureForStitching(ore));
+        }
+        resourcePack.put(getTexturePath(ore) + ".mcmeta", memoize(() -> getGeneratedTexture(ore).getMeta()));
+    }
+
+    /**
+     * The game reads some resources multiple times per reload, so resources that depend on the loaded resources
+     * are only made once per reload. The results are only softly referenced, and are dropped on reload.
+     */
+    private Supplier<byte[]> memoize(Supplier<byte[]> supplier) {
+        return memoizeBuffer(() -> ByteBuffer.wrap(supplier.get()));
+    }
+
+    private Supplier<byte[]> memoizeBuffer(Supplier<ByteBuffer> supplier) {
+        MemoizedResource resource = new MemoizedResource(supplier);
+        memoizedResources.add(resource);
+        return resource;
+    }
+
+    private GeneratedTexture getGeneratedTexture(CompactOre ore) {
+        CompletableFuture<GeneratedTexture> task = getTextureTask(ore);
+        // ores without texture generation aren't scheduled, and the tasks are dropped after stitching -
+        // generate the texture in place (or take it from the retained textures) if it's requested anyway
+        return task == null ? generateTexture(ore) : task.join();
+    }
+
+    private CompletableFuture<GeneratedTexture> getTextureTask(CompactOre ore) {
+        CompletableFuture<GeneratedTexture> task = getTextureTasks().get(ore);
+        return task != null ? task : pendingTextures.get(ore);
+    }
+
+    private Map<CompactOre, CompletableFuture<GeneratedTexture>> getTextureTasks() {
+        synchronized(this) {
+            if(textureTasks != null) return textureTasks;
+        }
+        // the first texture request of a resource reload starts the generation of all textures
+        Map<CompactOre, CompactOre> owners = getTextureOwners();
+        synchronized(this) {
+            if(textureTasks == null) startTextureGeneration(owners);
+            return textureTasks;
+        }
+    }
+
+    private ByteBuffer getTextureForStitching(CompactOre ore) {
+        CompletableFuture<GeneratedTexture> task = getTextureTask(ore);
+        if(progressiveTextures && task != null && !task.isDone()) {
+            // don't wait for the texture, stitch a placeholder of the same size and upload the texture later
+            try {
+                ArgbImage placeholder = CompactOreTexture.makePlaceholder(loadRawTexture(ore.getBaseUnderlyingTexture()),
+                        loadRawTexture(ore.getBaseOreTexture()), CompactOreTexture.usesOverlayModel(ore));
+                if(placeholder != null) {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    try {
-                        ImageIO.write(img, "PNG", baos);
-                    } catch (Exception exc) {
-                        exc.printStackTrace();
+                    PngWriter.write(baos, placeholder.getWidth(), placeholder.getHeight(),
+                            Collections.singletonList(placeholder.getPixels()), Deflater.NO_COMPRESSION);
+                    // the task has to outlive this reload, so it's kept away from the invalidator, which cancels the
+                    // unfinished tasks before the atlas is stitched
+                    pendingTextures.put(ore, task);
+                    synchronized(this) {
+                        if(textureTasks != null) textureTasks.remove(ore, task);
                     }
-                    return baos.toByteArray();
+                    return ByteBuffer.wrap(baos.toByteArray());
                 }
-            });
+            } catch(IOException | RuntimeException e) {
+                // just wait for the texture then
+                LOGGER.debug("Unable to make placeholder for compact ore texture " + CompactOreBlock.ORE_PROPERTY.getName(ore) +
+                        ": " + e.getClass().getName() + ": " + e.getMessage());
+            }
+        }
+        return (task == null ? generateTexture(ore) : task.join()).getTextureBuffer();
+    }
+
+    private void startTextureGeneration(Map<CompactOre, CompactOre> owners) {
+        textureTasks = new HashMap<>();
+        for(Map.Entry<CompactOre, CompactOre> owner : owners.entrySet()) {
+            CompactOre ore = owner.getKey();
+            if(owner.getValue() == ore) {
+                textureTasks.put(ore, CompletableFuture.supplyAsync(() -> generateTexture(ore), TEXTURE_GENERATION_POOL));
+            }
+        }
+        LOGGER.info("Generating " + textureTasks.size() + " compact ore textures using " +
+                TEXTURE_GENERATION_POOL.getParallelism() + " threads");
+    }
+
+    /**
+     * Decides which textures need to be generated in this resource reload, and returns the ore whose texture is used
+     * for each of the ores that get a generated texture. Ores whose textures are made from identical inputs produce
+     * identical textures, so they all use the texture of the first one of them. Textures that another resource pack
+     * provides (e.g. one made by the TextureBaker) hide ours anyway, so those ores aren't included at all.
+     * <p>
+     * This reads all input textures, so it happens without holding the lock - concurrent callers wait for the
+     * first one instead.
+     */
+    private Map<CompactOre, CompactOre> getTextureOwners() {
+        CompletableFuture<Map<CompactOre, CompactOre>> owners;
+        boolean compute = false;
+        synchronized(this) {
+            if(textureOwners == null) {
+                textureOwners = new CompletableFuture<>();
+                compute = true;
+            }
+            owners = textureOwners;
+        }
+        if(compute) {
+            try {
+                owners.complete(findTextureOwners());
+            } catch(Throwable t) {
+                synchronized(this) {
+                    if(textureOwners == owners) textureOwners = null;
+                }
+                owners.completeExceptionally(t);
+            }
+        }
+        return owners.join();
+    }
+
+    private Map<CompactOre, CompactOre> findTextureOwners() {
+        Map<CompactOre, ResourceLocation> textures = new LinkedHashMap<>();
+        for(CompactOre ore : oreListSupplier.get()) {
+            if(ore.isGenerateTexture()) {
+                textures.put(ore, new ResourceLocation(CompactOres.COMPACT_ORE.getId().getNamespace(),
+                        "textures/" + CompactOreBlock.ORE_PROPERTY.getName(ore) + ".png"));
+            }
+        }
+        Set<ResourceLocation> provided = findProvidedResources(textures.values());
+        List<CompactOre> generated = new ArrayList<>();
+        textures.forEach((ore, texture) -> {
+            if(!provided.contains(texture)) generated.add(ore);
+        });
+        // loading and hashing the inputs is the slow part, so it's done on all generator threads
+        Map<CompactOre, String> cacheKeys = new ConcurrentHashMap<>();
+        TEXTURE_GENERATION_POOL.submit(() -> generated.parallelStream().forEach(ore -> {
+            try {
+                cacheKeys.put(ore, computeCacheKey(ore, loadRawTexture(ore.getBaseUnderlyingTexture()),
+                        loadRawTexture(ore.getBaseOreTexture())));
+            } catch(IOException | RuntimeException e) {
+                // the error is reported when the texture is generated
+            }
+        })).join();
+        Map<String, CompactOre> ownersByKey = new HashMap<>();
+        Map<CompactOre, CompactOre> owners = new HashMap<>();
+        // in ore order, so that the same ore owns a texture every time
+        for(CompactOre ore : generated) {
+            String cacheKey = cacheKeys.get(ore);
+            owners.put(ore, cacheKey == null ? ore : ownersByKey.computeIfAbsent(cacheKey, k -> ore));
         }
-        resourcePack.put("assets/" + CompactOres.COMPACT_ORE.getId().getNamespace() + "/textures/" +
-                CompactOreBlock.ORE_PROPERTY.getName(ore) + ".png.mcmeta", () -> {
+        LOGGER.info(textures.size() + " compact ores have generated textures: " + provided.size() +
+                " are provided by other resource packs, " + (owners.size() - ownersByKey.size()) +
+                " are identical to others");
+        return owners;
+    }
+
+    private Set<ResourceLocation> findProvidedResources(Collection<ResourceLocation> locations) {
+        Set<ResourceLocation> provided = new HashSet<>();
+        // the packs of the current reload, which are already open
+        Minecraft.getInstance().getResourceManager().getResourcePackStream().forEach(pack -> {
+            if(PACK_NAME.equals(pack.getName())) return;
             try {
-                CompactOreTexture.TextureInfo info = CompactOreTexture.generate(null, ore.getBaseUnderlyingTexture(),
-                        ore.getBaseBlockRegistryName(), ore.getBaseOreTexture(), ore.getMaxOreLayerColorDiff());
-                return info.generateMeta().toString().getBytes(StandardCharsets.UTF_8);
-            } catch(Exception e) {
-                LOGGER.error("Failed to generate compact ore texture for " + CompactOreBlock.ORE_PROPERTY.getName(ore) + ", using missing texture instead.");
-                logExceptionCauseList(e);
-                throw e;
+                for(ResourceLocation location : locations) {
+                    if(pack.resourceExists(ResourcePackType.CLIENT_RESOURCES, location)) {
+                        provided.add(location);
+                    }
+                }
+            } catch(RuntimeException e) {
+                LOGGER.warn("Unable to check resource pack " + pack.getName() + " for compact ore textures: " +
+                        e.getClass().getName() + ": " + e.getMessage());
+            }
+        });
+        return provided;
+    }
+
+    private GeneratedTexture generateTexture(CompactOre ore) {
+        CompactOreTexture.TextureInfo info;
+        String cacheKey;
+        try {
+            CompactOreTexture.RawTexture base, oreTexture;
+            try {
+                base = loadRawTexture(ore.getBaseUnderlyingTexture());
+                oreTexture = loadRawTexture(ore.getBaseOreTexture());
+            } catch(IOException | RuntimeException e) {
+                throw new RuntimeException("Unable to load textures (baseTexture=" + ore.getBaseUnderlyingTexture() +
+                        ", oreTexture=" + ore.getBaseOreTexture() + ")", e);
+            }
+            // skip all the work if the same texture was already generated before
+            cacheKey = computeCacheKey(ore, base, oreTexture);
+            // usually because neither input has changed since the last resource reload
+            GeneratedTexture retained = getRetainedTexture(cacheKey);
+            if(retained != null) {
+                return retained;
+            }
+            TextureCache.Entry cached = TextureCache.load(cacheKey);
+            if(cached != null) {
+                if ("true".equals(System.getProperty("compactores.dumpTextures"))) {
+                    TextureDumper.dump(ore, cached.getTexture());
+                }
+                return retainTexture(new GeneratedTexture(cacheKey, cached.getTexture(), cached.getMeta()));
+            }
+            info = CompactOreTexture.usesOverlayModel(ore) ?
+                    CompactOreTexture.generateOverlay(null, base, ore.getBaseBlockRegistryName(), oreTexture, ore.getMaxOreLayerColorDiff()) :
+                    CompactOreTexture.generate(null, base, ore.getBaseBlockRegistryName(), oreTexture, ore.getMaxOreLayerColorDiff());
+        } catch(RuntimeException e) {
+            LOGGER.error("Failed to generate compact ore texture for " + CompactOreBlock.ORE_PROPERTY.getName(ore) + ", using missing texture instead.");
+            logExceptionCauseList(e);
+            return new GeneratedTexture(makeMissingTexture(), e);
+        }
+        byte[] meta = info.encodeMeta();
+        try {
+            // The game only reads textures from resource packs, so the texture has to be a PNG - but as it is decoded
+            // again right away, it isn't compressed. Only the copies that are stored somewhere are compressed.
+            boolean dump = "true".equals(System.getProperty("compactores.dumpTextures"));
+            if(dump || TextureCache.isEnabled()) {
+                byte[] compressed = info.encodeImage();
+                if(dump) TextureDumper.dump(ore, compressed);
+                TextureCache.store(cacheKey, compressed, meta);
+            }
+            byte[] texture = info.encodeImage(Deflater.NO_COMPRESSION);
+            return retainTexture(new GeneratedTexture(cacheKey, texture, meta));
+        } catch (Exception e) {
+            LOGGER.error("Failed to generate compact ore texture for " + CompactOreBlock.ORE_PROPERTY.getName(ore) + ", using missing texture instead.");
+            logExceptionCauseList(e);
+            return new GeneratedTexture(null, makeMissingTexture(), meta);
+        }
+    }
+
+    private static byte[] readResource(ResourceLocation location) throws IOException {
+        try(IResource resource = Minecraft.getInstance().getResourceManager().getResource(location)) {
+            return Utils.readFully(resource.getInputStream());
+        }
+    }
+
+    private static String computeCacheKey(CompactOre ore, CompactOreTexture.RawTexture base, CompactOreTexture.RawTexture oreTexture) {
+        return TextureCache.computeKey(base, oreTexture, ore.getMaxOreLayerColorDiff(), CompactOreTexture.usesOverlayModel(ore));
+    }
+
+    private CompactOreTexture.RawTexture loadRawTexture(ResourceLocation location) throws IOException {
+        // many ores share their base texture, it's only loaded once even when they ask for it at the same time
+        CompletableFuture<CompactOreTexture.RawTexture> future = rawTextures.get(location);
+        if(future == null) {
+            CompletableFuture<CompactOreTexture.RawTexture> newFuture = new CompletableFuture<>();
+            future = rawTextures.putIfAbsent(location, newFuture);
+            if(future == null) {
+                future = newFuture;
+                try {
+                    newFuture.complete(CompactOreTexture.RawTexture.load(CompactOresResourcePack::readResource, location));
+                } catch(IOException | RuntimeException e) {
+                    rawTextures.remove(location, newFuture);
+                    newFuture.completeExceptionally(e);
+                }
             }
+        }
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private GeneratedTexture getRetainedTexture(String cacheKey) {
+        synchronized(retainedTextures) {
+            return retainedTextures.get(cacheKey);
+        }
+    }
+
+    private GeneratedTexture retainTexture(GeneratedTexture texture) {
+        synchronized(retainedTextures) {
+            GeneratedTexture previous = retainedTextures.put(texture.getCacheKey(), texture);
+            if(previous != null) retainedTextureBytes -= previous.getSize();
+            retainedTextureBytes += texture.getSize();
+            // evict the least recently used textures - they can still be loaded from the texture cache
+            Iterator<GeneratedTexture> it = retainedTextures.values().iterator();
+            while(retainedTextureBytes > maxRetainedTextureBytes && it.hasNext()) {
+                retainedTextureBytes -= it.next().getSize();
+                it.remove();
+            }
+        }
+        return texture;
+    }
+
+    /** Releases everything that is only needed until the generated textures are stitched onto the block atlas. */
+    public void onTextureStitched(TextureStitchEvent.Post event) {
+        if(!event.getMap().getTextureLocation().equals(AtlasTexture.LOCATION_BLOCKS_TEXTURE)) return;
+        int stitch = ++stitchCount;
+        List<CompletableFuture<?>> uploads = new ArrayList<>();
+        if(!pendingTextures.isEmpty()) {
+            LOGGER.info("Stitched " + pendingTextures.size() + " compact ore textures as placeholders, they are " +
+                    "replaced as soon as they are generated");
+            for(Map.Entry<CompactOre, CompletableFuture<GeneratedTexture>> pending : pendingTextures.entrySet()) {
+                CompactOre ore = pending.getKey();
+                CompletableFuture<GeneratedTexture> task = pending.getValue();
+                // (no thread waits for the texture, the upload is started by the task itself)
+                uploads.add(task.whenComplete((texture, error) -> uploadWhenGenerated(event.getMap(), stitch, ore, texture, error)));
+            }
+            pendingTextures.clear();
+        }
+        // The decoded and composited frames are dead weight once the atlas is on the GPU. The finished textures
+        // stay available as retained textures, in case they are requested again. The textures that are still
+        // being generated need them until they are done, though.
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            CompactOreTexture.releaseFrameCaches();
+            rawTextures.clear();
         });
+        synchronized(this) {
+            if(textureTasks != null) {
+                textureTasks = new HashMap<>();
+            }
+        }
+    }
+
+    private void uploadWhenGenerated(AtlasTexture atlas, int stitch, CompactOre ore, GeneratedTexture texture, Throwable error) {
+        ArgbImage image;
+        try {
+            if(error != null) throw error;
+            // failed textures keep the placeholder until the next resource reload (which will show the error)
+            if(texture.error != null || texture.getCacheKey() == null) return;
+            image = PngReader.read(texture.getTexture());
+        } catch(Throwable e) {
+            LOGGER.warn("Unable to replace placeholder of compact ore texture " + CompactOreBlock.ORE_PROPERTY.getName(ore) +
+                    ": " + e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+        ResourceLocation sprite = new ResourceLocation(CompactOres.COMPACT_ORE.getId().getNamespace(), CompactOreBlock.ORE_PROPERTY.getName(ore));
+        Minecraft.getInstance().execute(() -> {
+            if(stitch == stitchCount) uploadIntoAtlas(atlas, sprite, image);
+        });
+    }
+
+    // replaces the pixels of a (not animated) sprite, including its mipmaps - must be called on the render thread
+    private static void uploadIntoAtlas(AtlasTexture atlas, ResourceLocation location, ArgbImage image) {
+        TextureAtlasSprite sprite = atlas.getSprite(location);
+        if(sprite == null || sprite.getWidth() != image.getWidth() || sprite.getHeight() != image.getHeight()) {
+            LOGGER.warn("Unable to replace placeholder of compact ore texture " + location + ": the sprite has changed");
+            return;
+        }
+        // the sprite only knows its position in the atlas as texture coordinates
+        int atlasWidth = Math.round(sprite.getWidth() / (sprite.getMaxU() - sprite.getMinU()));
+        int atlasHeight = Math.round(sprite.getHeight() / (sprite.getMaxV() - sprite.getMinV()));
+        int x = Math.round(sprite.getMinU() * atlasWidth), y = Math.round(sprite.getMinV() * atlasHeight);
+        Minecraft.getInstance().getTextureManager().bindTexture(atlas.getTextureLocation());
+        // the atlas may have fewer mipmap levels than configured (the game lowers it for small sprites), and the
+        // stitched level count is only kept as the texture's maximum level
+        int mipmapLevels = Math.min(Minecraft.getInstance().gameSettings.mipmapLevels,
+                GL11.glGetTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL));
+        try(NativeImage nativeImage = new NativeImage(image.getWidth(), image.getHeight(), false)) {
+            int[] pixels = image.getPixels();
+            for(int i = 0; i < pixels.length; i++) {
+                // NativeImage stores the pixels as ABGR
+                int argb = pixels[i];
+                nativeImage.setPixelRGBA(i % image.getWidth(), i / image.getWidth(),
+                        (argb & 0xFF00FF00) | (argb >> 16 & 0xFF) | (argb & 0xFF) << 16);
+            }
+            // the same mipmaps that the atlas makes for stitched sprites
+            NativeImage[] mipmaps = MipmapGenerator.generateMipmaps(nativeImage, mipmapLevels);
+            for(int mipmap = 0; mipmap < mipmaps.length; mipmap++) {
+                mipmaps[mipmap].uploadTextureSub(mipmap, x >> mipmap, y >> mipmap, false);
+                // the first one is nativeImage itself
+                if(mipmap > 0) mipmaps[mipmap].close();
+            }
+        }
+    }
+
+    public static void setProgressiveTextures(boolean progressiveTextures) {
+        CompactOresResourcePack.progressiveTextures = progressiveTextures;
+    }
+
+    public static void setMaxRetainedTextureMemory(int megabytes) {
+        maxRetainedTextureBytes = Math.max(0, megabytes) * 1024L * 1024L;
+    }
+
+    private byte[] makeMissingTexture() {
+        // black and magenta checkerboard
+        int[] pixels = new int[16 * 16];
+        for(int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % 16 < 8) == (i / 16 < 8) ? 0xFF000000 : 0xFFFF00FF;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            PngWriter.write(baos, new ArgbImage(16, 16, pixels));
+        } catch (Exception exc) {
+            exc.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Builds the pack and starts the generation of the textures in the background, so that the textures are ready
+     * (or at least on the way) when the atlas stitcher asks for them. The textures are made from the resources of
+     * the current resource reload, so this must only be called while resources are being loaded.
+     */
+    public CompletableFuture<Void> prepareResources(Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                getPack();
+                // does nothing if the textures have already been requested
+                getTextureTasks();
+            } catch(RuntimeException e) {
+                // the textures are generated when they are requested instead
+                LOGGER.warn("Unable to prepare compact ore resources in the background: " + e.getClass().getName() + ": " + e.getMessage());
+            }
+        }, executor);
+    }
+
+    public void registerResourcePreparation() {
+        // in the preparation stage of every reload (including the first one), while the game loads the models
+        ((IReloadableResourceManager)Minecraft.getInstance().getResourceManager()).addReloadListener(
+                (IFutureReloadListener) (stage, resourceManager, preparationsProfiler, reloadProfiler, backgroundExecutor, gameExecutor) -> {
+                    // Reloads without textures (e.g. language changes) must not start a generation: the invalidator
+                    // only drops the tasks in texture reloads, so the next one would stitch outdated textures.
+                    if(!SelectiveReloadStateHandler.INSTANCE.get().test(VanillaResourceType.TEXTURES)) {
+                        return stage.markCompleteAwaitingOthers(null);
+                    }
+                    // the state of the previous reload is usually gone already, but that reload may not have got
+                    // to its end, and the resource packs may have changed since
+                    resetReloadState();
+                    return prepareResources(backgroundExecutor).thenCompose(stage::markCompleteAwaitingOthers);
+                });
+    }
+
+    public void registerCacheInvalidator() {
+        ((IReloadableResourceManager)Minecraft.getInstance().getResourceManager()).addReloadListener(
+                (ISelectiveResourceReloadListener) (resourceManager, resourcePredicate) -> {
+                    if(resourcePredicate.test(VanillaResourceType.TEXTURES)) {
+                        // All texture caches are invalidated here immediately AFTER resource loading has COMPLETED,
+                        // so that they don't use memory until the next reload.
+                        // Only the finished textures are kept: unchanged ores reuse them, see generateTexture.
+                        resetReloadState();
+                    }
+                }
+        );
+    }
+
+    // drops everything that depends on the resources of a reload
+    private void resetReloadState() {
+        CompactOreTexture.releaseFrameCaches();
+        rawTextures.clear();
+        memoizedResources.forEach(MemoizedResource::clear);
+        existingMetaFiles = null;
+        synchronized(this) {
+            if(textureTasks != null) {
+                textureTasks.values().forEach(task -> task.cancel(false));
+                textureTasks = null;
+            }
+            textureOwners = null;
+        }
     }
 
     private void logExceptionCauseList(Throwable th) {
@@ -248,4 +758,66 @@ public class CompactOresResourcePack implements IPackFinder {
                 true/*isAlwaysEnabled*/, this::getPack, iFactory, ResourcePackInfo.Priority.BOTTOM));
     }
 
+    private static class MemoizedResource implements InMemoryResourcePack.BufferedResource {
+        private final Supplier<ByteBuffer> supplier;
+        private volatile SoftReference<ByteBuffer> value = null;
+        private MemoizedResource(Supplier<ByteBuffer> supplier) {
+            this.supplier = supplier;
+        }
+        @Override
+        public ByteBuffer getBuffer() {
+            SoftReference<ByteBuffer> ref = value;
+            ByteBuffer buffer = ref == null ? null : ref.get();
+            if(buffer == null) {
+                // concurrent requests may make the resource twice, which is harmless
+                buffer = supplier.get();
+                value = new SoftReference<>(buffer);
+            }
+            // every reader gets its own position
+            return buffer.duplicate();
+        }
+        private void clear() {
+            value = null;
+        }
+    }
+
+    private static class GeneratedTexture {
+        private final String cacheKey;
+        // memory mapped for textures that are kept, see MappedTextureStore
+        private final ByteBuffer texture;
+        private final byte[] meta;
+        private final RuntimeException error;
+        private GeneratedTexture(String cacheKey, byte[] texture, byte[] meta) {
+            this.cacheKey = cacheKey;
+            this.texture = cacheKey == null ? ByteBuffer.wrap(texture) : TEXTURE_STORE.store(texture);
+            this.meta = meta;
+            this.error = null;
+        }
+        private GeneratedTexture(byte[] texture, RuntimeException error) {
+            this.cacheKey = null;
+            this.texture = ByteBuffer.wrap(texture);
+            this.meta = null;
+            this.error = error;
+        }
+        public String getCacheKey() {
+            return cacheKey;
+        }
+        public byte[] getTexture() {
+            byte[] bytes = new byte[texture.remaining()];
+            texture.duplicate().get(bytes);
+            return bytes;
+        }
+        public ByteBuffer getTextureBuffer() {
+            return texture.duplicate();
+        }
+        public long getSize() {
+            return texture.remaining() + (meta == null ? 0 : meta.length);
+        }
+        public byte[] getMeta() {
+            // without a generated texture, there is no meaningful metadata
+            if(error != null) throw error;
+            return meta;
+        }
+    }
+
 }
@@ -11,26 +11,53 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 public class InMemoryResourcePack implements IResourcePack {
 
     private String name;
     private Map<String, Supplier<byte[]>> data;
     private Predicate<String> doesActuallyExist;
+    // the resources by type directory, namespace and path (sorted, so that all paths with a prefix are next to each other)
+    private final Map<String, Map<String, NavigableMap<String, Entry>>> index;
 
     public InMemoryResourcePack(String name, Map<String, Supplier<byte[]>> data, Predicate<String> doesActuallyExist) {
         this.name = name;
         this.data = data;
         this.doesActuallyExist = doesActuallyExist;
+        this.index = buildIndex(data.keySet());
+    }
+
+    private static Map<String, Map<String, NavigableMap<String, Entry>>> buildIndex(Set<String> keys) {
+        Map<String, Map<String, NavigableMap<String, Entry>>> index = new HashMap<>();
+        for(String key : keys) {
+            String[] tk = key.split("/", 3);
+            // root files (like pack.mcmeta) aren't listed
+            if(tk.length < 3) continue;
+            index.computeIfAbsent(tk[0], k -> new HashMap<>()).computeIfAbsent(tk[1], k -> new TreeMap<>())
+                    .put(tk[2], new Entry(key, new ResourceLocation(tk[1], tk[2])));
+        }
+        Map<String, Map<String, NavigableMap<String, Entry>>> immutableIndex = new HashMap<>();
+        index.forEach((type, namespaces) -> {
+            Map<String, NavigableMap<String, Entry>> immutableNamespaces = new HashMap<>();
+            namespaces.forEach((namespace, paths) -> immutableNamespaces.put(namespace, Collections.unmodifiableNavigableMap(paths)));
+            immutableIndex.put(type, Collections.unmodifiableMap(immutableNamespaces));
+        });
+        return Collections.unmodifiableMap(immutableIndex);
     }
 
     private InputStream s(Supplier<byte[]> data) {
+        if(data instanceof BufferedResource) return new ByteBufferInputStream(((BufferedResource) data).getBuffer());
         return new ByteArrayInputStream(data.get());
     }
 
@@ -54,20 +81,18 @@ public class InMemoryResourcePack implements IResourcePack {
 
     @Override
     public Collection<ResourceLocation> getAllResourceLocations(ResourcePackType type, String namespaceIn, String pathIn, int maxDepthIn, Predicate<String> filterIn) {
-        return data.keySet().stream().filter(s -> s.contains("/")).filter(doesActuallyExist).map(s -> {
-                    String[] tk = s.split("/");
-                    String typeStr = tk[0];
-                    String namespace = tk[1];
-                    String path = s.substring(typeStr.length() + namespace.length() + 2);
-                    String filename = tk[tk.length - 1];
-                    return new String[]{typeStr, namespace, path, filename};
-                }).filter(tk -> tk[0].equals(type.getDirectoryName()))
-                .filter(tk -> tk[1].startsWith(namespaceIn))
-                .filter(tk -> tk[2].startsWith(pathIn))
-                .filter(tk -> filterIn.test(tk[3]))
-                .filter(tk -> tk[2].split("/").length - 1 <= maxDepthIn)
-                .map(tk -> new ResourceLocation(tk[1], tk[2]))
-                .collect(Collectors.toSet());
+        Set<ResourceLocation> locations = new HashSet<>();
+        for(Map.Entry<String, NavigableMap<String, Entry>> namespace : index.getOrDefault(type.getDirectoryName(), Collections.emptyMap()).entrySet()) {
+            if(!namespace.getKey().startsWith(namespaceIn)) continue;
+            // only the paths that start with pathIn
+            for(Entry entry : namespace.getValue().tailMap(pathIn, true).values()) {
+                if(!entry.location.getPath().startsWith(pathIn)) break;
+                if(entry.depth <= maxDepthIn && filterIn.test(entry.filename) && doesActuallyExist.test(entry.key)) {
+                    locations.add(entry.location);
+                }
+            }
+        }
+        return locations;
     }
 
     @Override
@@ -78,8 +103,7 @@ public class InMemoryResourcePack implements IResourcePack {
 
     @Override
     public Set<String> getResourceNamespaces(ResourcePackType type) {
-        return data.keySet().stream().filter(s -> s.startsWith(type.getDirectoryName())).map(s -> s.split("/")[1])
-                .collect(Collectors.toSet());
+        return index.getOrDefault(type.getDirectoryName(), Collections.emptyMap()).keySet();
     }
 
     @Nullable
@@ -107,4 +131,69 @@ public class InMemoryResourcePack implements IResourcePack {
     public boolean isHidden() {
         return true;
     }
+
+    /**
+     * A resource that is read from a buffer (which may be outside of the heap) instead of being copied into
+     * a byte array first.
+     */
+    public interface BufferedResource extends Supplier<byte[]> {
+        /** @return a buffer from the start to the end of the resource, that nobody else reads from */
+        ByteBuffer getBuffer();
+        @Override
+        default byte[] get() {
+            ByteBuffer buffer = getBuffer();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) return 0;
+            if(!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final ResourceLocation location;
+        private final String filename;
+        // the number of directories that the file is in, within the namespace
+        private final int depth;
+        private Entry(String key, ResourceLocation location) {
+            this.key = key;
+            this.location = location;
+            String path = location.getPath();
+            this.filename = path.substring(path.lastIndexOf('/') + 1);
+            int depth = 0;
+            for(int i = 0; i < path.length(); i++) {
+                if(path.charAt(i) == '/') depth++;
+            }
+            this.depth = depth;
+        }
+    }
+
 }
@@ -0,0 +1,124 @@
+package doublenegation.mods.compactores;
+
+import net.minecraftforge.fml.loading.FMLPaths;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps generated textures outside of the java heap, in memory mapped files in the game directory. The operating
+ * system can page them out when they aren't needed, and the game reads them straight from the page cache.
+ * <p>
+ * The textures are appended to segment files. A segment file is deleted once none of the textures in it are used
+ * anymore, i.e. when the buffers that were returned by {@link #store(byte[])} have been garbage collected.
+ * The files only live as long as the game runs - the texture cache keeps textures across game starts.
+ */
+public class MappedTextureStore {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String DIRECTORY_NAME = "compactores_texture_store";
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static boolean enabled = true;
+
+    private Path directory;
+    // the segment that new textures are added to
+    private MappedByteBuffer current;
+    // the buffers that store() returns refer to their segment buffer, so it is only collected once they all are
+    private final List<SegmentReference> segments = new ArrayList<>();
+    private final List<Path> unusedFiles = new ArrayList<>();
+    private boolean failed = false;
+
+    /**
+     * @return a read only buffer with the data, either memory mapped or (if the store is disabled or doesn't work)
+     *         on the heap
+     */
+    public synchronized ByteBuffer store(byte[] data) {
+        if(!enabled || failed) return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        try {
+            if(directory == null) directory = prepareDirectory();
+            if(current == null || current.remaining() < data.length) {
+                current = newSegment(Math.max(SEGMENT_SIZE, data.length));
+            }
+            ByteBuffer slice = current.slice();
+            slice.limit(data.length);
+            slice.put(data);
+            slice.flip();
+            current.position(current.position() + data.length);
+            return slice.asReadOnlyBuffer();
+        } catch(IOException | RuntimeException e) {
+            LOGGER.warn("Unable to use the compact ore texture store, keeping the textures in memory instead: " +
+                    e.getClass().getName() + ": " + e.getMessage());
+            failed = true;
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+    }
+
+    private Path prepareDirectory() throws IOException {
+        Path dir = FMLPaths.GAMEDIR.get().resolve(DIRECTORY_NAME);
+        Files.createDirectories(dir);
+        // left over from the previous game start
+        try(Stream<Path> files = Files.list(dir)) {
+            files.filter(Files::isRegularFile).forEach(unusedFiles::add);
+        }
+        return dir;
+    }
+
+    private MappedByteBuffer newSegment(int size) throws IOException {
+        deleteUnusedSegments();
+        // unique names, leftover files that can't be deleted yet must never be reused
+        Path file = Files.createTempFile(directory, "segment", ".bin");
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segments.add(new SegmentReference(buffer, file));
+        return buffer;
+    }
+
+    private void deleteUnusedSegments() {
+        for(Iterator<SegmentReference> it = segments.iterator(); it.hasNext(); ) {
+            SegmentReference segment = it.next();
+            if(segment.get() == null) {
+                it.remove();
+                unusedFiles.add(segment.file);
+            }
+        }
+        // deleting fails on some systems while the file is still mapped - the mapping is only released by the
+        // garbage collector, so just try again next time
+        unusedFiles.removeIf(file -> {
+            try {
+                Files.deleteIfExists(file);
+                return true;
+            } catch(IOException e) {
+                return false;
+            }
+        });
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MappedTextureStore.enabled = enabled;
+    }
+
+    private static class SegmentReference extends WeakReference<MappedByteBuffer> {
+        private final Path file;
+        private SegmentReference(MappedByteBuffer buffer, Path file) {
+            super(buffer);
+            this.file = file;
+        }
+    }
+
+}
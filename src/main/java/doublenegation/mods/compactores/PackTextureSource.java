@@ -0,0 +1,72 @@
+package doublenegation.mods.compactores;
+
+import net.minecraft.util.ResourceLocation;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads textures straight from mod jars, resource pack zips and resource pack directories, without a running game.
+ * Like in the resource pack menu, packs that are added later are on top of the ones that were added before.
+ * If nothing provides a texture, it is looked up on the classpath (which contains the vanilla assets when the
+ * texture baker is run from the development environment).
+ */
+public class PackTextureSource implements TextureSource, Closeable {
+
+    private final List<ZipFile> zips = new ArrayList<>();
+    // zips and directories in the order they were added
+    private final List<Object> packs = new ArrayList<>();
+
+    public void addPack(Path pack) throws IOException {
+        if(Files.isDirectory(pack)) {
+            packs.add(pack);
+        } else if(Files.isRegularFile(pack)) {
+            ZipFile zip = new ZipFile(pack.toFile());
+            zips.add(zip);
+            packs.add(zip);
+        } else {
+            throw new FileNotFoundException("Resource pack " + pack + " does not exist");
+        }
+    }
+
+    @Override
+    public byte[] read(ResourceLocation location) throws IOException {
+        String path = "assets/" + location.getNamespace() + "/" + location.getPath();
+        for(int i = packs.size() - 1; i >= 0; i--) {
+            Object pack = packs.get(i);
+            if(pack instanceof ZipFile) {
+                ZipFile zip = (ZipFile) pack;
+                ZipEntry entry = zip.getEntry(path);
+                if(entry == null) continue;
+                try(InputStream is = zip.getInputStream(entry)) {
+                    return Utils.readFully(is);
+                }
+            } else {
+                Path file = ((Path) pack).resolve(path);
+                if(Files.isRegularFile(file)) {
+                    return Files.readAllBytes(file);
+                }
+            }
+        }
+        try(InputStream is = PackTextureSource.class.getClassLoader().getResourceAsStream(path)) {
+            if(is != null) return Utils.readFully(is);
+        }
+        throw new FileNotFoundException(location.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(ZipFile zip : zips) {
+            zip.close();
+        }
+    }
+
+}
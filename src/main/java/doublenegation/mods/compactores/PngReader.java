@@ -0,0 +1,276 @@
+package doublenegation.mods.compactores;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes PNGs directly into packed ARGB pixels. Supports every color type and bit depth of the PNG specification
+ * (including transparency from tRNS chunks, and interlaced images), but ignores gamma and color profiles -
+ * just like the game does.
+ */
+public class PngReader {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Adam7 interlacing: the first pixel and the distance between pixels of each pass
+    private static final int[] PASS_X = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] PASS_Y = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] PASS_DX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] PASS_DY = {8, 8, 8, 4, 4, 2, 2};
+
+    private int width, height, bitDepth, colorType, channels;
+    private int[] palette;
+    // the raw sample values of the transparent color of grayscale and truecolor images
+    private int transparentGray = -1, transparentRed = -1, transparentGreen = -1, transparentBlue = -1;
+
+    public static boolean isPng(byte[] data) {
+        if(data.length < SIGNATURE.length) return false;
+        for(int i = 0; i < SIGNATURE.length; i++) {
+            if(data[i] != SIGNATURE[i]) return false;
+        }
+        return true;
+    }
+
+    public static ArgbImage read(byte[] data) throws IOException {
+        if(!isPng(data)) throw new IOException("Not a PNG image");
+        return new PngReader().decode(ByteBuffer.wrap(data, SIGNATURE.length, data.length - SIGNATURE.length).slice());
+    }
+
+    private ArgbImage decode(ByteBuffer buf) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        int interlace = -1;
+        try {
+            while(true) {
+                int length = buf.getInt();
+                byte[] typeBytes = new byte[4];
+                buf.get(typeBytes);
+                String type = new String(typeBytes, StandardCharsets.US_ASCII);
+                if(length < 0 || length > buf.remaining()) throw new IOException("Invalid length of " + type + " chunk");
+                ByteBuffer chunk = buf.slice();
+                chunk.limit(length);
+                buf.position(buf.position() + length + 4); // the CRC isn't checked
+                if(type.equals("IHDR")) {
+                    width = chunk.getInt();
+                    height = chunk.getInt();
+                    bitDepth = chunk.get() & 0xFF;
+                    colorType = chunk.get() & 0xFF;
+                    chunk.get(); // compression method, only deflate exists
+                    chunk.get(); // filter method, only adaptive filtering exists
+                    interlace = chunk.get() & 0xFF;
+                    channels = getChannels(colorType);
+                    if(!isValidBitDepth(colorType, bitDepth)) {
+                        throw new IOException("Unsupported bit depth " + bitDepth + " for color type " + colorType);
+                    }
+                    if(interlace > 1) throw new IOException("Unsupported interlace method " + interlace);
+                    if(width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / 4) {
+                        throw new IOException("Invalid image size " + width + "x" + height);
+                    }
+                } else if(type.equals("PLTE")) {
+                    palette = new int[length / 3];
+                    for(int i = 0; i < palette.length; i++) {
+                        palette[i] = 0xFF000000 | (chunk.get() & 0xFF) << 16 | (chunk.get() & 0xFF) << 8 | (chunk.get() & 0xFF);
+                    }
+                } else if(type.equals("tRNS")) {
+                    if(colorType == 3) {
+                        if(palette == null) throw new IOException("tRNS chunk before PLTE chunk");
+                        for(int i = 0; i < length && i < palette.length; i++) {
+                            palette[i] = (chunk.get() & 0xFF) << 24 | (palette[i] & 0xFFFFFF);
+                        }
+                    } else if(colorType == 0) {
+                        transparentGray = chunk.getShort() & 0xFFFF;
+                    } else if(colorType == 2) {
+                        transparentRed = chunk.getShort() & 0xFFFF;
+                        transparentGreen = chunk.getShort() & 0xFFFF;
+                        transparentBlue = chunk.getShort() & 0xFFFF;
+                    }
+                } else if(type.equals("IDAT")) {
+                    compressed.write(chunk.array(), chunk.arrayOffset(), length);
+                } else if(type.equals("IEND")) {
+                    break;
+                }
+            }
+        } catch(RuntimeException e) {
+            // BufferUnderflowException and friends
+            throw new IOException("Truncated or corrupt PNG image", e);
+        }
+        if(interlace == -1) throw new IOException("Missing IHDR chunk");
+        if(colorType == 3 && palette == null) throw new IOException("Missing PLTE chunk");
+        int bitsPerPixel = channels * bitDepth;
+        // the distance to the corresponding byte of the previous pixel, used by the filters
+        int filterOffset = Math.max(1, bitsPerPixel / 8);
+        boolean interlaced = interlace == 1;
+        int passes = interlaced ? 7 : 1;
+        long dataSize = 0;
+        for(int pass = 0; pass < passes; pass++) {
+            int passWidth = passWidth(pass, interlaced), passHeight = passHeight(pass, interlaced);
+            if(passWidth > 0 && passHeight > 0) dataSize += (long) passHeight * (1 + ((long) passWidth * bitsPerPixel + 7) / 8);
+        }
+        if(dataSize > Integer.MAX_VALUE) throw new IOException("Image too large");
+        byte[] data = inflate(compressed.toByteArray(), (int) dataSize);
+        int[] pixels = new int[width * height];
+        int pos = 0;
+        for(int pass = 0; pass < passes; pass++) {
+            int passWidth = passWidth(pass, interlaced), passHeight = passHeight(pass, interlaced);
+            if(passWidth == 0 || passHeight == 0) continue;
+            int rowBytes = (passWidth * bitsPerPixel + 7) / 8;
+            byte[] previous = new byte[rowBytes];
+            byte[] row = new byte[rowBytes];
+            for(int y = 0; y < passHeight; y++) {
+                int filter = data[pos++];
+                System.arraycopy(data, pos, row, 0, rowBytes);
+                pos += rowBytes;
+                unfilter(filter, row, previous, filterOffset);
+                int py = interlaced ? PASS_Y[pass] + y * PASS_DY[pass] : y;
+                for(int x = 0; x < passWidth; x++) {
+                    int px = interlaced ? PASS_X[pass] + x * PASS_DX[pass] : x;
+                    pixels[py * width + px] = toArgb(row, x);
+                }
+                byte[] tmp = previous;
+                previous = row;
+                row = tmp;
+            }
+        }
+        return new ArgbImage(width, height, pixels);
+    }
+
+    private static int getChannels(int colorType) throws IOException {
+        switch(colorType) {
+            case 0: return 1; // grayscale
+            case 2: return 3; // truecolor
+            case 3: return 1; // indexed
+            case 4: return 2; // grayscale with alpha
+            case 6: return 4; // truecolor with alpha
+            default: throw new IOException("Invalid color type " + colorType);
+        }
+    }
+
+    // the combinations that the PNG specification allows
+    private static boolean isValidBitDepth(int colorType, int bitDepth) {
+        switch(colorType) {
+            case 0: return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case 3: return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            default: return bitDepth == 8 || bitDepth == 16;
+        }
+    }
+
+    private int passWidth(int pass, boolean interlaced) {
+        return interlaced ? (width - PASS_X[pass] + PASS_DX[pass] - 1) / PASS_DX[pass] : width;
+    }
+
+    private int passHeight(int pass, boolean interlaced) {
+        return interlaced ? (height - PASS_Y[pass] + PASS_DY[pass] - 1) / PASS_DY[pass] : height;
+    }
+
+    private static byte[] inflate(byte[] compressed, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[size];
+            int pos = 0;
+            while(pos < size) {
+                int n = inflater.inflate(data, pos, size - pos);
+                if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated PNG image data");
+                }
+                pos += n;
+            }
+            return data;
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt PNG image data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void unfilter(int filter, byte[] row, byte[] previous, int offset) throws IOException {
+        switch(filter) {
+            case 0: // none
+                break;
+            case 1: // sub
+                for(int i = offset; i < row.length; i++) {
+                    row[i] += row[i - offset];
+                }
+                break;
+            case 2: // up
+                for(int i = 0; i < row.length; i++) {
+                    row[i] += previous[i];
+                }
+                break;
+            case 3: // average
+                for(int i = 0; i < row.length; i++) {
+                    int left = i >= offset ? row[i - offset] & 0xFF : 0;
+                    row[i] += (left + (previous[i] & 0xFF)) / 2;
+                }
+                break;
+            case 4: // paeth
+                for(int i = 0; i < row.length; i++) {
+                    int a = i >= offset ? row[i - offset] & 0xFF : 0;
+                    int b = previous[i] & 0xFF;
+                    int c = i >= offset ? previous[i - offset] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                    row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new IOException("Invalid filter type " + filter);
+        }
+    }
+
+    private int toArgb(byte[] row, int x) {
+        switch(colorType) {
+            case 0: {
+                int gray = sample(row, x, 0);
+                int alpha = gray == transparentGray ? 0 : 0xFF;
+                gray = to8Bit(gray);
+                return alpha << 24 | gray << 16 | gray << 8 | gray;
+            }
+            case 2: {
+                int red = sample(row, x, 0), green = sample(row, x, 1), blue = sample(row, x, 2);
+                int alpha = red == transparentRed && green == transparentGreen && blue == transparentBlue ? 0 : 0xFF;
+                return alpha << 24 | to8Bit(red) << 16 | to8Bit(green) << 8 | to8Bit(blue);
+            }
+            case 3: {
+                int index = sample(row, x, 0);
+                // out of range indices are invalid, but other decoders just show them as black
+                return index < palette.length ? palette[index] : 0xFF000000;
+            }
+            case 4: {
+                int gray = to8Bit(sample(row, x, 0));
+                return to8Bit(sample(row, x, 1)) << 24 | gray << 16 | gray << 8 | gray;
+            }
+            default:
+                return to8Bit(sample(row, x, 3)) << 24 | to8Bit(sample(row, x, 0)) << 16 |
+                        to8Bit(sample(row, x, 1)) << 8 | to8Bit(sample(row, x, 2));
+        }
+    }
+
+    // the raw value of a channel of a pixel, with the bit depth of the image
+    private int sample(byte[] row, int x, int channel) {
+        switch(bitDepth) {
+            case 8:
+                return row[x * channels + channel] & 0xFF;
+            case 16: {
+                int i = (x * channels + channel) * 2;
+                return (row[i] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+            }
+            default: {
+                // 1, 2 and 4 bits per sample only exist for single channel images
+                int bit = x * bitDepth;
+                return (row[bit / 8] >> (8 - bitDepth - bit % 8)) & ((1 << bitDepth) - 1);
+            }
+        }
+    }
+
+    private int to8Bit(int sample) {
+        switch(bitDepth) {
+            case 8: return sample;
+            case 16: return sample >> 8;
+            default: return sample * 0xFF / ((1 << bitDepth) - 1);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package doublenegation.mods.compactores;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes 8 bit RGBA PNGs directly from packed ARGB frames. The frames are stacked vertically (like animated textures
+ * expect them) while they are written, one row at a time, so the whole frame strip never exists in memory.
+ */
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // the maximum size of a single IDAT chunk - larger images are split into multiple chunks
+    private static final int CHUNK_SIZE = 32768;
+
+    // generated textures are written (and read again by the game) far more often than they are stored anywhere,
+    // so fast compression is more important than small files
+    private static int compressionLevel = Deflater.BEST_SPEED;
+
+    public static void write(OutputStream out, ArgbImage image) throws IOException {
+        write(out, image.getWidth(), image.getHeight(), Collections.singletonList(image.getPixels()));
+    }
+
+    public static void write(OutputStream out, int width, int frameHeight, List<int[]> frames) throws IOException {
+        write(out, width, frameHeight, frames, compressionLevel);
+    }
+
+    /**
+     * @param frames frames of width x frameHeight pixels each, written from top to bottom
+     * @param level the deflate compression level, 0 (no compression) to 9 (best compression)
+     */
+    public static void write(OutputStream out, int width, int frameHeight, List<int[]> frames, int level) throws IOException {
+        if(frames.isEmpty()) throw new IllegalArgumentException("Can not write an image without frames");
+        DataOutputStream os = new DataOutputStream(out);
+        os.write(SIGNATURE);
+        ChunkWriter header = new ChunkWriter(os, "IHDR");
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(frameHeight * frames.size());
+        headerData.writeByte(8); // bit depth
+        headerData.writeByte(6); // color type: truecolor with alpha
+        headerData.writeByte(0); // compression method: deflate
+        headerData.writeByte(0); // filter method: adaptive
+        headerData.writeByte(0); // interlace method: none
+        header.close();
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream data = new DeflaterOutputStream(new ChunkWriter(os, "IDAT"), deflater, CHUNK_SIZE);
+            byte[] row = new byte[width * 4 + 1];
+            byte[] filtered = new byte[width * 4 + 1];
+            for(int[] frame : frames) {
+                if(frame.length != width * frameHeight) {
+                    throw new IllegalArgumentException("Frame size mismatch (expected " + (width * frameHeight) +
+                            " pixels, got " + frame.length + ")");
+                }
+                for(int y = 0; y < frameHeight; y++) {
+                    for(int x = 0, i = y * width, j = 1; x < width; x++, i++, j += 4) {
+                        int argb = frame[i];
+                        row[j] = (byte) (argb >> 16);
+                        row[j + 1] = (byte) (argb >> 8);
+                        row[j + 2] = (byte) argb;
+                        row[j + 3] = (byte) (argb >>> 24);
+                    }
+                    // texture pixels are usually much like their left neighbour, so the "sub" filter makes them
+                    // compress a lot better at nearly no cost. It only needs the current row.
+                    System.arraycopy(row, 1, filtered, 1, row.length - 1);
+                    filtered[0] = 1;
+                    for(int j = filtered.length - 1; j > 4; j--) {
+                        filtered[j] -= row[j - 4];
+                    }
+                    data.write(filtered);
+                }
+            }
+            // also writes the last IDAT chunk
+            data.close();
+        } finally {
+            deflater.end();
+        }
+        new ChunkWriter(os, "IEND").close();
+        os.flush();
+    }
+
+    public static void setCompressionLevel(int compressionLevel) {
+        PngWriter.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+    }
+
+    public static int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Collects data and writes it as chunks of the given type - a new chunk is started whenever CHUNK_SIZE is exceeded.
+     * Closing the chunk writer writes the remaining data, but does not close the underlying stream.
+     */
+    private static class ChunkWriter extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] type;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size = 0;
+        private boolean written = false;
+        private ChunkWriter(DataOutputStream out, String type) {
+            this.out = out;
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            if(size == buffer.length) writeChunk();
+            buffer[size++] = (byte) b;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(size == buffer.length) writeChunk();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+        private void writeChunk() throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(buffer, 0, size);
+            out.writeInt(size);
+            out.write(type);
+            out.write(buffer, 0, size);
+            out.writeInt((int) crc.getValue());
+            size = 0;
+            written = true;
+        }
+        @Override
+        public void close() throws IOException {
+            // chunks without data (like IEND) still have to be written once
+            if(size > 0 || !written) writeChunk();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package doublenegation.mods.compactores;
+
+import java.util.Arrays;
+
+/**
+ * Lookup structure for the colors of a rock texture. Answers whether a color is within a certain
+ * (manhattan) distance of any of the rock colors without having to compare it against every single one of them.
+ */
+public class RockColorIndex {
+
+    // the rgb cube is split into 16x16x16 cells, each of them 16x16x16 colors large
+    private static final int CELL_BITS = 4;
+    private static final int CELL_SIZE = 1 << CELL_BITS;
+    private static final int CELLS_PER_AXIS = 256 / CELL_SIZE;
+
+    private final int maxDiff;
+    // cells in which every color is close enough to at least one rock color
+    private final boolean[] fullCells = new boolean[CELLS_PER_AXIS * CELLS_PER_AXIS * CELLS_PER_AXIS];
+    // for all other cells: the rock colors that are close enough to at least a part of the cell
+    private final int[][] candidates = new int[CELLS_PER_AXIS * CELLS_PER_AXIS * CELLS_PER_AXIS][];
+    private final int[] candidateCounts = new int[CELLS_PER_AXIS * CELLS_PER_AXIS * CELLS_PER_AXIS];
+
+    /**
+     * @param colors The rock colors, each one packed as 0xRRGGBB. May contain duplicates.
+     * @param maxDiff The maximum manhattan distance between two colors for them to be considered the same.
+     */
+    public RockColorIndex(int[] colors, int maxDiff) {
+        this.maxDiff = maxDiff;
+        int[] distinctColors = colors.clone();
+        Arrays.sort(distinctColors);
+        int prev = -1;
+        for(int color : distinctColors) {
+            if(color == prev) continue;
+            prev = color;
+            insert(color);
+        }
+    }
+
+    private void insert(int color) {
+        int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        int minCellR = Math.max(0, r - maxDiff) >> CELL_BITS, maxCellR = Math.min(255, r + maxDiff) >> CELL_BITS;
+        int minCellG = Math.max(0, g - maxDiff) >> CELL_BITS, maxCellG = Math.min(255, g + maxDiff) >> CELL_BITS;
+        int minCellB = Math.max(0, b - maxDiff) >> CELL_BITS, maxCellB = Math.min(255, b + maxDiff) >> CELL_BITS;
+        for(int cellR = minCellR; cellR <= maxCellR; cellR++) {
+            int nearR = distanceToRange(r, cellR), farR = farDistanceToRange(r, cellR);
+            for(int cellG = minCellG; cellG <= maxCellG; cellG++) {
+                int nearG = distanceToRange(g, cellG), farG = farDistanceToRange(g, cellG);
+                for(int cellB = minCellB; cellB <= maxCellB; cellB++) {
+                    int cell = cellIndex(cellR, cellG, cellB);
+                    if(fullCells[cell]) continue;
+                    if(farR + farG + farDistanceToRange(b, cellB) <= maxDiff) {
+                        // every color in this cell is close enough - the candidates are no longer required
+                        fullCells[cell] = true;
+                        candidates[cell] = null;
+                        candidateCounts[cell] = 0;
+                    } else if(nearR + nearG + distanceToRange(b, cellB) <= maxDiff) {
+                        addCandidate(cell, color);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addCandidate(int cell, int color) {
+        int[] list = candidates[cell];
+        int count = candidateCounts[cell];
+        if(list == null) {
+            list = candidates[cell] = new int[4];
+        } else if(count == list.length) {
+            list = candidates[cell] = Arrays.copyOf(list, count * 2);
+        }
+        list[count] = color;
+        candidateCounts[cell] = count + 1;
+    }
+
+    /** @return whether the color (given by its channels) is within maxDiff of any rock color */
+    public boolean matches(int r, int g, int b) {
+        int cell = cellIndex(r >> CELL_BITS, g >> CELL_BITS, b >> CELL_BITS);
+        if(fullCells[cell]) return true;
+        int[] list = candidates[cell];
+        for(int i = 0; i < candidateCounts[cell]; i++) {
+            int c = list[i];
+            int diff = Math.abs(r - ((c >> 16) & 0xFF)) + Math.abs(g - ((c >> 8) & 0xFF)) + Math.abs(b - (c & 0xFF));
+            if(diff <= maxDiff) return true;
+        }
+        return false;
+    }
+
+    private static int cellIndex(int cellR, int cellG, int cellB) {
+        return (cellR * CELLS_PER_AXIS + cellG) * CELLS_PER_AXIS + cellB;
+    }
+
+    // distance from value to the closest value in the cell
+    private static int distanceToRange(int value, int cell) {
+        int min = cell << CELL_BITS, max = min + CELL_SIZE - 1;
+        return value < min ? min - value : value > max ? value - max : 0;
+    }
+
+    // distance from value to the furthest value in the cell
+    private static int farDistanceToRange(int value, int cell) {
+        int min = cell << CELL_BITS, max = min + CELL_SIZE - 1;
+        return Math.max(Math.abs(value - min), Math.abs(value - max));
+    }
+
+}
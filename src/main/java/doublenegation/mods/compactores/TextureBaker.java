@@ -0,0 +1,231 @@
+package doublenegation.mods.compactores;
+
+import com.electronwill.nightconfig.core.file.FileConfig;
+import com.google.gson.JsonObject;
+import doublenegation.mods.compactores.config.ConfigLoader;
+import net.minecraftforge.fml.ModList;
+import net.minecraftforge.fml.loading.FMLPaths;
+import net.minecraftforge.fml.loading.moddiscovery.ModFileInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the compact ore textures of a modpack ahead of time and writes them into a resource pack, without
+ * starting the game. Clients that have this resource pack enabled skip generating the textures it contains.
+ * <p>
+ * Usage: TextureBaker &lt;compactores config directory&gt; &lt;output zip&gt; [mod jars and resource packs...]
+ * <p>
+ * The mod jars and resource packs are given from bottom to top, i.e. in the order they are listed in the resource
+ * pack menu, from the bottom. Textures that none of them contain (like the vanilla ones) are taken from the classpath.
+ * See the bakeTextures gradle task.
+ * <p>
+ * Dedicated servers can also bake the pack on startup (see exportServerResourcePack in the config readme), so that
+ * it can be handed to the players as the server resource pack.
+ */
+public class TextureBaker {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String PACK_DESCRIPTION = "CompactOres baked textures";
+    private static final String SERVER_PACK_NAME = "compactores_server_pack.zip";
+    // resource packs in here are used as texture sources for the server pack, e.g. for the vanilla textures,
+    // which aren't part of the server jar
+    private static final String SERVER_PACK_SOURCES_DIR = "compactores_server_pack_sources";
+
+    private static boolean exportServerPack = false;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: TextureBaker <compactores config directory> <output zip> [mod jars and resource packs...]");
+            System.exit(1);
+        }
+        Path configDir = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        try(PackTextureSource source = new PackTextureSource()) {
+            for(int i = 2; i < args.length; i++) {
+                source.addPack(Paths.get(args[i]));
+            }
+            List<CompactOre> ores = ConfigLoader.buildOres(loadConfigs(configDir.resolve("definitions")),
+                    loadConfigs(configDir.resolve("customizations")));
+            Map<String, byte[]> files = bake(ores, source);
+            writePack(files, output);
+            LOGGER.info("Wrote " + files.size() + " files to " + output.toAbsolutePath());
+        }
+    }
+
+    private static List<FileConfig> loadConfigs(Path dir) throws IOException {
+        if(!Files.isDirectory(dir)) return new ArrayList<>();
+        try(Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().toLowerCase(Locale.ROOT).endsWith(".toml"))
+                    .map(p -> {
+                        FileConfig cfg = FileConfig.of(p);
+                        cfg.load();
+                        return cfg;
+                    })
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** @return the generated files of the resource pack, by path */
+    public static Map<String, byte[]> bake(List<CompactOre> ores, TextureSource source) {
+        return bake(ores, source, true);
+    }
+
+    /**
+     * @param allowOverlays whether ores that use overlay models get overlay textures - only if the pack is used with
+     *                      the same useOverlayModels setting, otherwise full textures are made for all ores
+     * @return the generated files of the resource pack, by path
+     */
+    public static Map<String, byte[]> bake(List<CompactOre> ores, TextureSource source, boolean allowOverlays) {
+        Map<String, byte[]> files = new ConcurrentHashMap<>();
+        ores.parallelStream().filter(CompactOre::isGenerateTexture).forEach(ore -> {
+            if(ore.getBaseUnderlyingTexture() == null || ore.getBaseOreTexture() == null) return;
+            try {
+                CompactOreTexture.RawTexture base = CompactOreTexture.RawTexture.load(source, ore.getBaseUnderlyingTexture());
+                CompactOreTexture.RawTexture oreTexture = CompactOreTexture.RawTexture.load(source, ore.getBaseOreTexture());
+                boolean overlay = allowOverlays && CompactOreTexture.usesOverlayModel(ore);
+                CompactOreTexture.TextureInfo info = overlay ?
+                        CompactOreTexture.generateOverlay(null, base, ore.getBaseBlockRegistryName(), oreTexture, ore.getMaxOreLayerColorDiff()) :
+                        CompactOreTexture.generate(null, base, ore.getBaseBlockRegistryName(), oreTexture, ore.getMaxOreLayerColorDiff());
+                String path = "assets/" + CompactOres.MODID + "/textures/" + ore.getName() + ".png";
+                files.put(path, info.encodeImage());
+                // the same condition as in the game - only animated textures have metadata
+                if(oreTexture.getMeta() != null || (!overlay && base.getMeta() != null)) {
+                    files.put(path + ".mcmeta", info.encodeMeta());
+                }
+            } catch(IOException | RuntimeException e) {
+                // the game will try again at runtime
+                LOGGER.warn("Unable to bake compact ore texture for " + ore.getBaseBlockRegistryName() + ": " +
+                        e.getClass().getName() + ": " + e.getMessage());
+            }
+        });
+        JsonObject packmcmeta = new JsonObject();
+        JsonObject packmcmetapack = new JsonObject();
+        packmcmetapack.addProperty("pack_format", 4);
+        packmcmetapack.addProperty("description", PACK_DESCRIPTION);
+        packmcmeta.add("pack", packmcmetapack);
+        files.put("pack.mcmeta", packmcmeta.toString().getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    public static void writePack(Map<String, byte[]> files, Path output) throws IOException {
+        if(output.getParent() != null) Files.createDirectories(output.getParent());
+        try(OutputStream os = Files.newOutputStream(output); ZipOutputStream zip = new ZipOutputStream(os)) {
+            // sorted, so that baking the same textures twice produces the same pack
+            for(Map.Entry<String, byte[]> file : new TreeMap<>(files).entrySet()) {
+                ZipEntry entry = new ZipEntry(file.getKey());
+                entry.setTime(0);
+                zip.putNextEntry(entry);
+                zip.write(file.getValue());
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Bakes the textures of the given ores into a resource pack in the game directory, that can be used as the
+     * resource-pack of a dedicated server. The textures are read from the loaded mods and from the resource packs
+     * in the server pack sources directory.
+     * @return the SHA-1 hash of the pack, for resource-pack-sha1
+     */
+    public static String exportServerPack(List<CompactOre> ores) throws IOException {
+        Path gameDir = FMLPaths.GAMEDIR.get();
+        Path output = gameDir.resolve(SERVER_PACK_NAME);
+        Path sourcesDir = gameDir.resolve(SERVER_PACK_SOURCES_DIR);
+        try(PackTextureSource source = new PackTextureSource()) {
+            for(ModFileInfo modFile : ModList.get().getModFiles()) {
+                Path modPath = modFile.getFile().getFilePath();
+                // not every mod file is a real file (e.g. minecraft itself in some setups)
+                if(Files.exists(modPath)) source.addPack(modPath);
+            }
+            if(Files.isDirectory(sourcesDir)) {
+                try(Stream<Path> packs = Files.list(sourcesDir)) {
+                    // sorted, so that the order (and the pack) doesn't change between server starts
+                    for(Path pack : packs.sorted().collect(Collectors.toList())) {
+                        source.addPack(pack);
+                    }
+                }
+            } else {
+                Files.createDirectories(sourcesDir);
+            }
+            Map<String, byte[]> files;
+            try {
+                // the players choose overlay models in their own config, but full textures work with both kinds of
+                // models: an overlay model just draws the full texture over the base texture
+                files = bake(ores, source, false);
+            } finally {
+                // nothing else on the server ever releases the decoded and composited frames
+                CompactOreTexture.releaseFrameCaches();
+            }
+            // written next to the pack and moved into place, so a crash never leaves a truncated pack behind
+            // (and the hash of the previous pack is removed first, so it never ends up next to the new one)
+            Path sha1File = gameDir.resolve(SERVER_PACK_NAME + ".sha1");
+            Path temp = Files.createTempFile(gameDir, SERVER_PACK_NAME, ".tmp");
+            String sha1;
+            try {
+                writePack(files, temp);
+                sha1 = sha1(temp);
+                Files.deleteIfExists(sha1File);
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            Files.write(sha1File, sha1.getBytes(StandardCharsets.US_ASCII));
+            LOGGER.info("Wrote " + (files.size() - 1) + " compact ore textures to the server resource pack " +
+                    output.toAbsolutePath() + " (SHA-1 " + sha1 + ")");
+            return sha1;
+        }
+    }
+
+    private static String sha1(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            // every java implementation has to support SHA-1
+            throw new RuntimeException(e);
+        }
+        try(InputStream is = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static void setExportServerPack(boolean exportServerPack) {
+        TextureBaker.exportServerPack = exportServerPack;
+    }
+
+    public static boolean isExportServerPack() {
+        return exportServerPack;
+    }
+
+}
@@ -0,0 +1,165 @@
+package doublenegation.mods.compactores;
+
+import net.minecraftforge.fml.loading.FMLPaths;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache for generated textures in the game directory. Entries are addressed by a hash of everything
+ * that the generated texture depends on, so they never have to be invalidated - unused entries are simply
+ * deleted after a while.
+ */
+public class TextureCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Increment whenever the texture generation changes in a way that produces different output for the same inputs
+    private static final int GENERATOR_VERSION = 4;
+    private static final long MAX_UNUSED_AGE = TimeUnit.DAYS.toMillis(30);
+    private static final String DIRECTORY_NAME = "compactores_texture_cache";
+
+    private static boolean enabled = true;
+    private static boolean cleanedUp = false;
+
+    public static String computeKey(CompactOreTexture.RawTexture base, CompactOreTexture.RawTexture ore,
+                                    int maxOreLayerColorDiff, boolean overlay) {
+        MessageDigest digest = sha1();
+        // everything that changes the generated texture, including the global texture generation options
+        digest.update(ByteBuffer.allocate(24).putInt(GENERATOR_VERSION).putInt(maxOreLayerColorDiff)
+                .putInt(overlay ? 1 : 0).putInt(CompactOreTexture.isRedrawOreBase() ? 1 : 0)
+                .putInt(CompactOreTexture.getMaxTextureResolution()).putInt(CompactOreTexture.getMaxAnimationFrames()).array());
+        // the fingerprints of the inputs are computed only once, no matter how many ores share them
+        digest.update(base.getFingerprint());
+        digest.update(ore.getFingerprint());
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /** @return the hash of a texture and its metadata (which may be null) */
+    public static byte[] fingerprint(byte[] texture, byte[] meta) {
+        MessageDigest digest = sha1();
+        update(digest, texture);
+        update(digest, meta);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not available", e);
+        }
+    }
+
+    // the length prefix makes sure that moving bytes from one input to the next changes the key
+    private static void update(MessageDigest digest, byte[] data) {
+        digest.update(ByteBuffer.allocate(4).putInt(data == null ? -1 : data.length).array());
+        if(data != null) digest.update(data);
+    }
+
+    /** @return the cached texture, or null if there is no cache entry for the key */
+    public static Entry load(String key) {
+        if(!enabled) return null;
+        Path dir = getDirectory();
+        Path texture = dir.resolve(key + ".png");
+        Path meta = dir.resolve(key + ".png.mcmeta");
+        if(!Files.isRegularFile(texture) || !Files.isRegularFile(meta)) return null;
+        try {
+            Entry entry = new Entry(Files.readAllBytes(texture), Files.readAllBytes(meta));
+            // remember that the entry is still in use
+            FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+            Files.setLastModifiedTime(texture, now);
+            Files.setLastModifiedTime(meta, now);
+            return entry;
+        } catch(IOException e) {
+            LOGGER.warn("Unable to read cached compact ore texture " + key + ": " + e.getClass().getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void store(String key, byte[] texture, byte[] meta) {
+        if(!enabled) return;
+        try {
+            Path dir = getDirectory();
+            if(!Files.isDirectory(dir)) Files.createDirectories(dir);
+            cleanUp(dir);
+            // the texture is written last, an entry without texture is never loaded
+            write(dir, key + ".png.mcmeta", meta);
+            write(dir, key + ".png", texture);
+        } catch(IOException e) {
+            LOGGER.warn("Unable to cache compact ore texture " + key + ": " + e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void write(Path dir, String name, byte[] data) throws IOException {
+        // write to a temporary file first so that concurrent game instances never see half-written entries
+        Path tmp = Files.createTempFile(dir, name, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static synchronized void cleanUp(Path dir) {
+        if(cleanedUp) return;
+        cleanedUp = true;
+        long threshold = System.currentTimeMillis() - MAX_UNUSED_AGE;
+        try(Stream<Path> files = Files.list(dir)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                try {
+                    if(Files.getLastModifiedTime(file).toMillis() < threshold) {
+                        Files.delete(file);
+                    }
+                } catch(IOException e) {
+                    LOGGER.debug("Unable to delete outdated texture cache file " + file + ": " + e.getMessage());
+                }
+            });
+        } catch(IOException e) {
+            LOGGER.warn("Unable to clean up the compact ore texture cache: " + e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static Path getDirectory() {
+        return FMLPaths.GAMEDIR.get().resolve(DIRECTORY_NAME);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TextureCache.enabled = enabled;
+    }
+
+    public static class Entry {
+        private final byte[] texture;
+        private final byte[] meta;
+        public Entry(byte[] texture, byte[] meta) {
+            this.texture = texture;
+            this.meta = meta;
+        }
+        public byte[] getTexture() {
+            return texture;
+        }
+        public byte[] getMeta() {
+            return meta;
+        }
+    }
+
+}
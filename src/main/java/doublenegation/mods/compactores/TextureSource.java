@@ -0,0 +1,19 @@
+package doublenegation.mods.compactores;
+
+import net.minecraft.util.ResourceLocation;
+
+import java.io.IOException;
+
+/**
+ * Provides the textures that compact ore textures are made from. In game, this is the resource manager -
+ * the texture baker reads them directly from mod jars and resource packs instead.
+ */
+public interface TextureSource {
+
+    /**
+     * @param location The full location of the resource (e.g. minecraft:textures/block/stone.png)
+     * @throws java.io.FileNotFoundException if the resource doesn't exist
+     */
+    byte[] read(ResourceLocation location) throws IOException;
+
+}
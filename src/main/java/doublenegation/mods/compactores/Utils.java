@@ -5,13 +5,20 @@ import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.text.ITextComponent;
 
 import javax.imageio.ImageIO;
-import java.awt.Graphics2D;
 import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
 import java.awt.color.ICC_ProfileGray;
 import java.awt.image.BufferedImage;
-import java.awt.image.IndexColorModel;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -33,37 +40,86 @@ public class Utils {
         return new ResourceLocation(namespace, path);
     }
 
-    public static BufferedImage loadImage(InputStream is) throws IOException {
+    public static ArgbImage loadImage(byte[] data) throws IOException {
+        // textures are (almost) always PNGs, which don't need the detour through ImageIO and BufferedImage
+        if(PngReader.isPng(data)) return PngReader.read(data);
+        return loadImage(new ByteArrayInputStream(data));
+    }
+
+    public static ArgbImage loadImage(InputStream is) throws IOException {
         // ImageIO behaves in an unexpected way when reading a grayscale PNG.
-        // this method works around that behavior and always loads a correct BufferedImage
+        // this method works around that behavior and always loads the correct pixels
         // see https://stackoverflow.com/questions/31312645/java-imageio-grayscale-png-issue
         BufferedImage img = ImageIO.read(is);
+        if(img == null) throw new IOException("Unsupported image format");
+        int w = img.getWidth(), h = img.getHeight();
+        int[] pixels = new int[w * h];
         ColorSpace colorSpace = img.getColorModel().getColorSpace();
         if(colorSpace instanceof ICC_ColorSpace) {
             ICC_Profile profile = ((ICC_ColorSpace)colorSpace).getProfile();
             if(profile instanceof ICC_ProfileGray) {
-                BufferedImage corr = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
-                for(int x = 0; x < img.getWidth(); x++) {
-                    for(int y = 0; y < img.getHeight(); y++) {
-                        int val = img.getRaster().getSample(x, y, 0);
-                        int alpha = 0xff;
-                        if(img.getAlphaRaster() != null) {
-                            alpha = img.getAlphaRaster().getSample(x, y, 0);
-                        }
-                        corr.setRGB(x, y, alpha * 0x1000000 + val * 0x10000 + val * 0x100 + val);
-                    }
+                // 16 bit grayscale images need to be reduced to 8 bits
+                int valShift = img.getSampleModel().getSampleSize(0) - 8;
+                int[] vals = img.getRaster().getSamples(0, 0, w, h, 0, (int[])null);
+                int[] alphas = null;
+                int alphaShift = 0;
+                if(img.getAlphaRaster() != null) {
+                    alphas = img.getAlphaRaster().getSamples(0, 0, w, h, 0, (int[])null);
+                    alphaShift = img.getAlphaRaster().getSampleModel().getSampleSize(0) - 8;
+                }
+                for(int i = 0; i < pixels.length; i++) {
+                    int val = vals[i] >> valShift;
+                    int alpha = alphas == null ? 0xff : alphas[i] >> alphaShift;
+                    pixels[i] = alpha << 24 | val << 16 | val << 8 | val;
                 }
-                return corr;
+                return new ArgbImage(w, h, pixels);
             }
         }
-        // An IndexColorModel also causes problems (at least sometimes), re-draw the image if one is used
-        if(img.getColorModel() instanceof IndexColorModel) {
-            BufferedImage corr = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D gr = corr.createGraphics();
-            gr.drawImage(img, 0, 0, null);
-            return corr;
+        // Copy the common pixel layouts directly, let the color model convert everything else
+        // (that also takes care of IndexColorModels, which caused problems when used directly)
+        DataBuffer buffer = img.getRaster().getDataBuffer();
+        boolean plainRaster = img.getRaster().getMinX() == 0 && img.getRaster().getMinY() == 0 &&
+                img.getRaster().getSampleModelTranslateX() == 0 && img.getRaster().getSampleModelTranslateY() == 0 &&
+                buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+        if(plainRaster && img.getType() == BufferedImage.TYPE_INT_ARGB) {
+            System.arraycopy(((DataBufferInt)buffer).getData(), 0, pixels, 0, pixels.length);
+        } else if(plainRaster && img.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] data = ((DataBufferInt)buffer).getData();
+            for(int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xff000000 | data[i];
+            }
+        } else if(plainRaster && img.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            byte[] data = ((DataBufferByte)buffer).getData();
+            for(int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+                pixels[i] = (data[j] & 0xff) << 24 | (data[j + 3] & 0xff) << 16 | (data[j + 2] & 0xff) << 8 | (data[j + 1] & 0xff);
+            }
+        } else if(plainRaster && img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] data = ((DataBufferByte)buffer).getData();
+            for(int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                pixels[i] = 0xff000000 | (data[j + 2] & 0xff) << 16 | (data[j + 1] & 0xff) << 8 | (data[j] & 0xff);
+            }
+        } else {
+            img.getRGB(0, 0, w, h, pixels, 0, w);
         }
-        return img;
+        return new ArgbImage(w, h, pixels);
+    }
+
+    public static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    /** Wraps the pixels in a BufferedImage without copying them. */
+    public static BufferedImage toBufferedImage(ArgbImage image) {
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(image.getPixels(), image.getPixels().length),
+                image.getWidth(), image.getHeight(), image.getWidth(), colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
     public static class ReturningScreen extends Screen {
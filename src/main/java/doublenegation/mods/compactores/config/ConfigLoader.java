@@ -4,6 +4,11 @@ import com.electronwill.nightconfig.core.file.FileConfig;
 import com.google.common.collect.ImmutableList;
 import doublenegation.mods.compactores.CompactOre;
 import doublenegation.mods.compactores.CompactOreTexture;
+import doublenegation.mods.compactores.CompactOresResourcePack;
+import doublenegation.mods.compactores.MappedTextureStore;
+import doublenegation.mods.compactores.PngWriter;
+import doublenegation.mods.compactores.TextureBaker;
+import doublenegation.mods.compactores.TextureCache;
 import doublenegation.mods.compactores.Utils;
 import net.minecraft.util.ResourceLocation;
 import net.minecraftforge.fml.ModList;
@@ -11,6 +16,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -32,100 +38,7 @@ public class ConfigLoader {
         try {
 
             cfm.load();
-            ConfigFile globalDefinition = null;
-            ConfigFile globalCustomization = null;
-            Map<ResourceLocation, ConfigFile> definitions = new HashMap<>();
-            Map<ResourceLocation, ConfigFile> customizations = new HashMap<>();
-
-            for (FileConfig cfg : cfm.getDefinitionConfigs()) {
-                ConfigFile f = new ConfigFile(cfg, ConfigFile.Type.DEFINITION);
-                if (f.hasGlobalConfig()) {
-                    if (globalDefinition == null) {
-                        globalDefinition = f;
-                    } else {
-                        LOGGER.fatal("Multiple global definition configs found:");
-                        LOGGER.fatal("\t" + globalDefinition.getType().getDirname() + "/" + globalDefinition.getFilenameNamespace() + ".toml");
-                        LOGGER.fatal("\t" + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
-                        throw new IllegalStateException("Multiple global definition configs found - aborting!");
-                    }
-                }
-                for (ResourceLocation ore : f.getOres()) {
-                    if (!definitions.containsKey(ore)) {
-                        definitions.put(ore, f);
-                    } else {
-                        ConfigFile g = definitions.get(ore);
-                        LOGGER.fatal("Ore " + ore + " is defined multiple times:");
-                        LOGGER.fatal("\tin " + g.getType().getDirname() + "/" + g.getFilenameNamespace() + ".toml");
-                        LOGGER.fatal("\tin " + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
-                        throw new IllegalStateException("Ore " + ore + " is defined multiple times - aborting!");
-                    }
-                }
-            }
-
-            for (FileConfig cfg : cfm.getCustomizationConfigs()) {
-                ConfigFile f = new ConfigFile(cfg, ConfigFile.Type.CUSTOMIZATION);
-                if (f.hasGlobalConfig()) {
-                    if (globalCustomization == null) {
-                        globalCustomization = f;
-                    } else {
-                        LOGGER.fatal("Multiple global customizations configs found:");
-                        LOGGER.fatal("\t" + globalCustomization.getType().getDirname() + "/" + globalCustomization.getFilenameNamespace() + ".toml");
-                        LOGGER.fatal("\t" + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
-                        throw new IllegalStateException("Multiple global customization configs found - aborting!");
-                    }
-                }
-                for (ResourceLocation ore : f.getOres()) {
-                    if (!definitions.containsKey(ore)) {
-                        LOGGER.warn("Customization config found for undefined ore " + ore + " - ignoring!");
-                        continue;
-                    }
-                    if (!customizations.containsKey(ore)) {
-                        customizations.put(ore, f);
-                    } else {
-                        ConfigFile g = customizations.get(ore);
-                        LOGGER.fatal("Ore " + ore + " is defined customized times:");
-                        LOGGER.fatal("\tin " + g.getType().getDirname() + "/" + g.getFilenameNamespace() + ".toml");
-                        LOGGER.fatal("\tin " + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
-                        throw new IllegalStateException("Ore " + ore + " is customized multiple times - aborting!");
-                    }
-                }
-            }
-
-            if (globalDefinition != null) {
-                Optional.ofNullable(globalDefinition.getGlobalConfigValue("generateTexture"))
-                        .filter(v -> v instanceof Boolean).ifPresent(v -> OreBuilder.setGlobalGenerateTexture((boolean) v));
-                Optional.ofNullable(globalDefinition.getGlobalConfigValue("maxOreLayerColorDiff"))
-                        .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMaxOreLayerColorDiff((int) v));
-                Optional.ofNullable(globalDefinition.getGlobalConfigValue("redrawOreBase"))
-                        .filter(v -> v instanceof Boolean).ifPresent(v -> CompactOreTexture.setRedrawOreBase((boolean) v));
-            }
-            if (globalCustomization != null) {
-                Optional.ofNullable(globalCustomization.getGlobalConfigValue("minRolls"))
-                        .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMinRolls((int) v));
-                Optional.ofNullable(globalCustomization.getGlobalConfigValue("maxRolls"))
-                        .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMaxRolls((int) v));
-                Optional.ofNullable(globalCustomization.getGlobalConfigValue("spawnProbability"))
-                        .filter(v -> v instanceof Number).ifPresent(v -> OreBuilder.setGlobalSpawnProbability((float) (double) v));
-            }
-
-            OreBuilderFactoryProvider obfp = new OreBuilderFactoryProvider();
-            List<CompactOre> ores = new ArrayList<>();
-            for (ResourceLocation orename : definitions.keySet()) {
-                OreConfigHolder och = new OreConfigHolder(orename, obfp);
-                och.setDefinitionConfig(definitions.get(orename));
-                if (customizations.containsKey(orename)) {
-                    och.setCustomizationConfig(customizations.get(orename));
-                } else {
-                    LOGGER.warn("No customization config specified for ore " + orename +
-                            " - if you do not intend to customize the ore, it is recommended to specify an empty customization block anyways");
-                }
-                try {
-                    ores.add(och.buildOre());
-                } catch (RuntimeException ex) {
-                    LOGGER.warn("Failed to load ore " + orename + ": " + ex.getClass().getName() + ": " + ex.getMessage());
-                    ex.printStackTrace();
-                }
-            }
+            List<CompactOre> ores = buildOres(cfm.getDefinitionConfigs(), cfm.getCustomizationConfigs());
 
             List<CompactOre> enabledOres = new ArrayList<>();
             Set<String> activeOreMods = new HashSet<>(), inactiveOreMods = new HashSet<>();
@@ -185,6 +98,126 @@ public class ConfigLoader {
 
     }
 
+    /**
+     * Builds the ores from the given config files, without checking whether their mods are loaded.
+     * Also applies the global options.
+     */
+    public static List<CompactOre> buildOres(Collection<FileConfig> definitionConfigs, Collection<FileConfig> customizationConfigs) {
+        ConfigFile globalDefinition = null;
+        ConfigFile globalCustomization = null;
+        Map<ResourceLocation, ConfigFile> definitions = new HashMap<>();
+        Map<ResourceLocation, ConfigFile> customizations = new HashMap<>();
+
+        for (FileConfig cfg : definitionConfigs) {
+            ConfigFile f = new ConfigFile(cfg, ConfigFile.Type.DEFINITION);
+            if (f.hasGlobalConfig()) {
+                if (globalDefinition == null) {
+                    globalDefinition = f;
+                } else {
+                    LOGGER.fatal("Multiple global definition configs found:");
+                    LOGGER.fatal("\t" + globalDefinition.getType().getDirname() + "/" + globalDefinition.getFilenameNamespace() + ".toml");
+                    LOGGER.fatal("\t" + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
+                    throw new IllegalStateException("Multiple global definition configs found - aborting!");
+                }
+            }
+            for (ResourceLocation ore : f.getOres()) {
+                if (!definitions.containsKey(ore)) {
+                    definitions.put(ore, f);
+                } else {
+                    ConfigFile g = definitions.get(ore);
+                    LOGGER.fatal("Ore " + ore + " is defined multiple times:");
+                    LOGGER.fatal("\tin " + g.getType().getDirname() + "/" + g.getFilenameNamespace() + ".toml");
+                    LOGGER.fatal("\tin " + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
+                    throw new IllegalStateException("Ore " + ore + " is defined multiple times - aborting!");
+                }
+            }
+        }
+
+        for (FileConfig cfg : customizationConfigs) {
+            ConfigFile f = new ConfigFile(cfg, ConfigFile.Type.CUSTOMIZATION);
+            if (f.hasGlobalConfig()) {
+                if (globalCustomization == null) {
+                    globalCustomization = f;
+                } else {
+                    LOGGER.fatal("Multiple global customizations configs found:");
+                    LOGGER.fatal("\t" + globalCustomization.getType().getDirname() + "/" + globalCustomization.getFilenameNamespace() + ".toml");
+                    LOGGER.fatal("\t" + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
+                    throw new IllegalStateException("Multiple global customization configs found - aborting!");
+                }
+            }
+            for (ResourceLocation ore : f.getOres()) {
+                if (!definitions.containsKey(ore)) {
+                    LOGGER.warn("Customization config found for undefined ore " + ore + " - ignoring!");
+                    continue;
+                }
+                if (!customizations.containsKey(ore)) {
+                    customizations.put(ore, f);
+                } else {
+                    ConfigFile g = customizations.get(ore);
+                    LOGGER.fatal("Ore " + ore + " is defined customized times:");
+                    LOGGER.fatal("\tin " + g.getType().getDirname() + "/" + g.getFilenameNamespace() + ".toml");
+                    LOGGER.fatal("\tin " + f.getType().getDirname() + "/" + f.getFilenameNamespace() + ".toml");
+                    throw new IllegalStateException("Ore " + ore + " is customized multiple times - aborting!");
+                }
+            }
+        }
+
+        if (globalDefinition != null) {
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("generateTexture"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> OreBuilder.setGlobalGenerateTexture((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("maxOreLayerColorDiff"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMaxOreLayerColorDiff((int) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("redrawOreBase"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> CompactOreTexture.setRedrawOreBase((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("maxTextureResolution"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> CompactOreTexture.setMaxTextureResolution((int) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("maxAnimationFrames"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> CompactOreTexture.setMaxAnimationFrames((int) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("textureCompressionLevel"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> PngWriter.setCompressionLevel((int) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("useMappedTextureStore"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> MappedTextureStore.setEnabled((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("progressiveTextures"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> CompactOresResourcePack.setProgressiveTextures((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("exportServerResourcePack"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> TextureBaker.setExportServerPack((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("useOverlayModels"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> CompactOreTexture.setUseOverlayModels((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("useTextureCache"))
+                    .filter(v -> v instanceof Boolean).ifPresent(v -> TextureCache.setEnabled((boolean) v));
+            Optional.ofNullable(globalDefinition.getGlobalConfigValue("maxRetainedTextureMemory"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> CompactOresResourcePack.setMaxRetainedTextureMemory((int) v));
+        }
+        if (globalCustomization != null) {
+            Optional.ofNullable(globalCustomization.getGlobalConfigValue("minRolls"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMinRolls((int) v));
+            Optional.ofNullable(globalCustomization.getGlobalConfigValue("maxRolls"))
+                    .filter(v -> v instanceof Integer).ifPresent(v -> OreBuilder.setGlobalMaxRolls((int) v));
+            Optional.ofNullable(globalCustomization.getGlobalConfigValue("spawnProbability"))
+                    .filter(v -> v instanceof Number).ifPresent(v -> OreBuilder.setGlobalSpawnProbability((float) (double) v));
+        }
+
+        OreBuilderFactoryProvider obfp = new OreBuilderFactoryProvider();
+        List<CompactOre> ores = new ArrayList<>();
+        for (ResourceLocation orename : definitions.keySet()) {
+            OreConfigHolder och = new OreConfigHolder(orename, obfp);
+            och.setDefinitionConfig(definitions.get(orename));
+            if (customizations.containsKey(orename)) {
+                och.setCustomizationConfig(customizations.get(orename));
+            } else {
+                LOGGER.warn("No customization config specified for ore " + orename +
+                        " - if you do not intend to customize the ore, it is recommended to specify an empty customization block anyways");
+            }
+            try {
+                ores.add(och.buildOre());
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to load ore " + orename + ": " + ex.getClass().getName() + ": " + ex.getMessage());
+                ex.printStackTrace();
+            }
+        }
+        return ores;
+    }
+
     private static class OreBuilderFactoryProvider implements BiFunction<ConfigFile, ConfigFile, OreBuilder> {
 
         private Map<ConfigFile, Map<ConfigFile, OreBuilder.Factory>> factories = new HashMap<>();
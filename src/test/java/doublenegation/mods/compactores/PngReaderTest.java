@@ -0,0 +1,53 @@
+package doublenegation.mods.compactores;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PngReaderTest {
+
+    // the positions of the IHDR fields: after the signature and the length and type of the chunk
+    private static final int BIT_DEPTH = 24;
+    private static final int COLOR_TYPE = 25;
+
+    private static byte[] validPng() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PngWriter.write(baos, new ArgbImage(2, 2, new int[] {0xFF000000, 0xFFFFFFFF, 0x80FF0000, 0x00000000}));
+        return baos.toByteArray();
+    }
+
+    private static void assertRejected(int colorType, int bitDepth) throws IOException {
+        byte[] png = validPng();
+        // the reader doesn't check the CRC, so the header can just be changed
+        png[COLOR_TYPE] = (byte) colorType;
+        png[BIT_DEPTH] = (byte) bitDepth;
+        try {
+            PngReader.read(png);
+            fail("Color type " + colorType + " with bit depth " + bitDepth + " was accepted");
+        } catch(IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported bit depth"));
+        }
+    }
+
+    @Test
+    public void readsValidImage() throws IOException {
+        assertArrayEquals(new int[] {0xFF000000, 0xFFFFFFFF, 0x80FF0000, 0x00000000}, PngReader.read(validPng()).getPixels());
+    }
+
+    @Test
+    public void rejectsInvalidBitDepths() throws IOException {
+        assertRejected(6, 0);
+        assertRejected(6, 3);
+        assertRejected(0, 5);
+        assertRejected(3, 16);
+        assertRejected(2, 4);
+        assertRejected(4, 1);
+        assertRejected(6, 2);
+    }
+
+}